@@ -0,0 +1,45 @@
+package definitely.not.deezer;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Pool of direct buffers used for moving audio data between channels.
+ * Buffers are a multiple of the 2048 byte Deezer chunk size.
+ */
+public class BufferPool {
+    static final int BUFFER_SIZE = 16 * 2048;
+    //Maximum idle buffers kept, more are left to GC
+    static final int MAX_POOLED = 16;
+
+    private static final ConcurrentLinkedQueue<ByteBuffer> pool = new ConcurrentLinkedQueue<>();
+    private static final AtomicInteger pooled = new AtomicInteger();
+
+    /**
+     * Get a cleared buffer from pool or allocate new one.
+     * @return Direct buffer of BUFFER_SIZE bytes
+     */
+    public static ByteBuffer acquire() {
+        ByteBuffer buffer = pool.poll();
+        if (buffer == null)
+            return ByteBuffer.allocateDirect(BUFFER_SIZE);
+        pooled.decrementAndGet();
+        buffer.clear();
+        return buffer;
+    }
+
+    /**
+     * Return buffer to pool, mustn't be used by caller afterwards.
+     * @param buffer Buffer from acquire()
+     */
+    public static void release(ByteBuffer buffer) {
+        if (buffer == null || buffer.capacity() != BUFFER_SIZE)
+            return;
+        if (pooled.incrementAndGet() > MAX_POOLED) {
+            pooled.decrementAndGet();
+            return;
+        }
+        pool.offer(buffer);
+    }
+}
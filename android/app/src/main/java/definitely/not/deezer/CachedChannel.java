@@ -0,0 +1,253 @@
+package definitely.not.deezer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Channel reading a track through the stream cache, from any offset.
+ * Present blocks are read from disk, missing ones are downloaded from upstream and stored.
+ * Channels of the same track share downloads, blocks being downloaded by another channel are waited for.
+ * Returns the data as stored (encrypted), wrap in DecryptingChannel to decrypt.
+ */
+public class CachedChannel implements ReadableByteChannel {
+    //Max wait for a block downloaded by another channel, the other reader might be stalled
+    static final long CLAIM_TIMEOUT = 2000;
+    //Download rest of upstream range if this small when closing, so the connection is kept alive for reuse
+    static final long FINISH_LIMIT = 2 * StreamCache.BLOCK_SIZE;
+
+    public interface Upstream {
+        /**
+         * Open range of the track on CDN.
+         * @param start First byte
+         * @param end Last byte (inclusive)
+         */
+        InputStream open(long start, long end) throws IOException;
+    }
+
+    private final StreamCache.Entry entry;
+    private final Upstream upstream;
+    //Exclusive end of data returned
+    private final long limit;
+    private ByteBuffer buffer;
+    private int bufferBlock = -1;
+    private long position;
+
+    private volatile ReadableByteChannel upstreamChannel;
+    private volatile long upstreamOffset = -1;
+    private volatile boolean cancelled = false;
+    private ThroughputEstimator estimator;
+    private StreamServer.StreamInfo stats;
+    private long downloaded = 0;
+    //Blocks until this one (exclusive) are claimed for upstreamChannel
+    private volatile int claimedTo = 0;
+
+    /**
+     * @param entry Acquired cache entry, released on close
+     * @param upstream Used only if a block is missing
+     * @param position Track offset to start from
+     * @param limit Track offset to end at (exclusive)
+     */
+    public CachedChannel(StreamCache.Entry entry, Upstream upstream, long position, long limit) {
+        this.entry = entry;
+        this.upstream = upstream;
+        this.position = position;
+        this.limit = Math.min(limit, entry.size);
+        this.buffer = BufferPool.acquire();
+    }
+
+    //Report download speed of upstream reads
+    public CachedChannel setEstimator(ThroughputEstimator estimator) {
+        this.estimator = estimator;
+        return this;
+    }
+
+    //Count cache hits & downloaded blocks
+    public CachedChannel setStats(StreamServer.StreamInfo stats) {
+        this.stats = stats;
+        return this;
+    }
+
+    //Bytes stored from upstream by this channel
+    public long downloaded() {
+        return downloaded;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (buffer == null)
+            throw new ClosedChannelException();
+        if (cancelled) {
+            closeUpstream(true);
+            throw new IOException("Read of " + entry.key + " cancelled");
+        }
+        if (position >= limit)
+            return -1;
+
+        int block = (int) (position / StreamCache.BLOCK_SIZE);
+        if (block != bufferBlock)
+            load(block);
+
+        int offset = (int) (position - (long) block * StreamCache.BLOCK_SIZE);
+        int output = (int) Math.min(Math.min(dst.remaining(), buffer.limit() - offset), limit - position);
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset).limit(offset + output);
+        dst.put(slice);
+        position += output;
+        return output;
+    }
+
+    //Get block into buffer from disk or upstream
+    private void load(int block) throws IOException {
+        bufferBlock = -1;
+        buffer.clear();
+        boolean force = false;
+        while (true) {
+            if (entry.has(block)) {
+                //Don't keep connection to CDN idle
+                closeUpstream(true);
+                entry.read(block, buffer);
+                if (stats != null)
+                    stats.cacheHit();
+                break;
+            }
+            //Next block of own download
+            if (upstreamChannel != null && upstreamOffset == (long) block * StreamCache.BLOCK_SIZE && block < claimedTo) {
+                fetch(block);
+                break;
+            }
+
+            closeUpstream(true);
+            //Request missing run, up to next cached/pending block or end of read
+            int lastBlock = (int) ((limit - 1) / StreamCache.BLOCK_SIZE);
+            int endBlock = entry.claim(block, lastBlock + 1, force);
+            if (endBlock > block) {
+                long start = (long) block * StreamCache.BLOCK_SIZE;
+                long end = Math.min((long) endBlock * StreamCache.BLOCK_SIZE, entry.size) - 1;
+                try {
+                    upstreamChannel = Channels.newChannel(upstream.open(start, end));
+                } catch (IOException e) {
+                    entry.unclaim(block, endBlock);
+                    throw e;
+                }
+                upstreamOffset = start;
+                claimedTo = endBlock;
+                fetch(block);
+                break;
+            }
+
+            //Another channel is downloading it, use its data. Download too if it stalls
+            if (!entry.await(block, CLAIM_TIMEOUT))
+                force = true;
+        }
+        bufferBlock = block;
+    }
+
+    private void fetch(int block) throws IOException {
+        long start = (long) block * StreamCache.BLOCK_SIZE;
+        buffer.limit(entry.blockLength(block));
+        long started = System.nanoTime();
+        while (buffer.hasRemaining()) {
+            int read;
+            try {
+                read = upstreamChannel.read(buffer);
+            } catch (IOException e) {
+                closeUpstream(false);
+                throw e;
+            }
+            if (read == -1) {
+                closeUpstream(false);
+                throw new IOException("Upstream ended at " + (start + buffer.position()) + " of " + entry.size);
+            }
+        }
+        if (estimator != null)
+            estimator.sample(buffer.position(), System.nanoTime() - started);
+        downloaded += buffer.position();
+        if (stats != null)
+            stats.upstream(buffer.position());
+        buffer.flip();
+        upstreamOffset += buffer.limit();
+        entry.write(block, buffer);
+    }
+
+    //Bytes left in current upstream range
+    private long upstreamRemaining() {
+        return Math.min((long) claimedTo * StreamCache.BLOCK_SIZE, entry.size) - upstreamOffset;
+    }
+
+    /**
+     * Close CDN connection, blocks claimed but not downloaded are given up.
+     * @param finish Download short remainder first, which lets the connection be reused
+     */
+    private void closeUpstream(boolean finish) {
+        if (upstreamChannel != null) {
+            if (finish && upstreamRemaining() <= FINISH_LIMIT)
+                finishUpstream();
+            try {
+                upstreamChannel.close();
+            } catch (Exception ignored) {}
+            entry.unclaim((int) (upstreamOffset / StreamCache.BLOCK_SIZE), claimedTo);
+        }
+        upstreamChannel = null;
+        upstreamOffset = -1;
+        claimedTo = 0;
+    }
+
+    //Store rest of claimed blocks and read to EOF
+    private void finishUpstream() {
+        ByteBuffer remainder = BufferPool.acquire();
+        try {
+            for (int block = (int) (upstreamOffset / StreamCache.BLOCK_SIZE); block < claimedTo; block++) {
+                remainder.clear();
+                remainder.limit(entry.blockLength(block));
+                while (remainder.hasRemaining()) {
+                    if (upstreamChannel.read(remainder) == -1)
+                        return;
+                }
+                remainder.flip();
+                upstreamOffset += remainder.limit();
+                downloaded += remainder.limit();
+                if (stats != null)
+                    stats.upstream(remainder.limit());
+                entry.write(block, remainder);
+            }
+            remainder.clear();
+            upstreamChannel.read(remainder);
+        } catch (IOException ignored) {
+        } finally {
+            BufferPool.release(remainder);
+        }
+    }
+
+    /**
+     * Abort from another thread, for example when a newer request superseded this one.
+     * Long running download is closed immediately, next read fails.
+     */
+    public void cancel() {
+        cancelled = true;
+        ReadableByteChannel channel = upstreamChannel;
+        if (channel != null && upstreamRemaining() > FINISH_LIMIT) {
+            try {
+                channel.close();
+            } catch (Exception ignored) {}
+        }
+    }
+
+    @Override
+    public boolean isOpen() {
+        return buffer != null;
+    }
+
+    @Override
+    public void close() {
+        if (buffer == null)
+            return;
+        closeUpstream(!cancelled);
+        BufferPool.release(buffer);
+        buffer = null;
+        entry.cache.release(entry);
+    }
+}
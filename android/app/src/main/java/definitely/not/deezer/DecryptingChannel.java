@@ -0,0 +1,156 @@
+package definitely.not.deezer;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Channel decrypting Deezer tracks (every 3rd full 2048 byte chunk) from any byte offset.
+ * Source can be a network stream or a local file, only local files can seek backwards.
+ * Used by StreamServer, DownloadService and DeezerDecryptor.decryptFile.
+ */
+public class DecryptingChannel implements ReadableByteChannel {
+    private final ReadableByteChannel source;
+    private final BlowfishEngine engine;
+    private ByteBuffer buffer;
+    //Track offset of buffer start and of next byte read from source, always chunk aligned (except EOF)
+    private long bufferOffset;
+    private long sourceOffset;
+    //Track offset of next byte returned by read()
+    private long position;
+    private boolean eof = false;
+    //Time spent decrypting, reported on close
+    private StreamMetrics metrics;
+    private long decryptNanos = 0;
+
+    /**
+     * @param source Encrypted source, FileChannels are read from their current position
+     * @param engine Decryption engine for track
+     * @param sourceOffset Track offset of the source position, has to be aligned to 2048 bytes
+     * @throws IOException If offset isn't aligned to a chunk
+     */
+    public DecryptingChannel(ReadableByteChannel source, BlowfishEngine engine, long sourceOffset) throws IOException {
+        if (sourceOffset % 2048 != 0)
+            throw new IOException("Offset " + sourceOffset + " isn't aligned to 2048 byte chunks!");
+        this.source = source;
+        this.engine = engine;
+        this.sourceOffset = sourceOffset;
+        this.bufferOffset = sourceOffset;
+        this.position = sourceOffset;
+        this.buffer = BufferPool.acquire();
+        buffer.limit(0);
+    }
+
+    //Record decryption time into metrics on close
+    public DecryptingChannel setMetrics(StreamMetrics metrics) {
+        this.metrics = metrics;
+        return this;
+    }
+
+    /**
+     * @return Track offset of next byte returned by read()
+     */
+    public long position() {
+        return position;
+    }
+
+    /**
+     * Move to track offset. Inside the current buffer or forward on streams this skips data,
+     * on FileChannels (offset = track offset) the source is repositioned to the chunk containing it.
+     * @param newPosition Track offset
+     * @return This channel
+     * @throws IOException If seeking backwards on a stream or the source fails
+     */
+    public DecryptingChannel position(long newPosition) throws IOException {
+        if (buffer == null)
+            throw new ClosedChannelException();
+
+        //Already decrypted
+        if (newPosition >= bufferOffset && newPosition <= bufferOffset + buffer.limit()) {
+            buffer.position((int) (newPosition - bufferOffset));
+            position = newPosition;
+            return this;
+        }
+
+        //Seek file
+        if (source instanceof FileChannel) {
+            long aligned = newPosition - newPosition % 2048;
+            ((FileChannel) source).position(aligned);
+            sourceOffset = aligned;
+            bufferOffset = aligned;
+            eof = false;
+        } else if (newPosition < sourceOffset) {
+            throw new IOException("Can't seek backwards on stream!");
+        }
+
+        //Skip whole buffers until target is in buffer
+        buffer.limit(0);
+        while (newPosition >= sourceOffset && !eof) {
+            if (!fill()) break;
+        }
+        buffer.position((int) Math.min(newPosition - bufferOffset, buffer.limit()));
+        position = bufferOffset + buffer.position();
+        return this;
+    }
+
+    //Read next buffer of full chunks (or EOF) and decrypt
+    private boolean fill() throws IOException {
+        buffer.clear();
+        bufferOffset = sourceOffset;
+        while (buffer.hasRemaining()) {
+            if (source.read(buffer) == -1) {
+                eof = true;
+                break;
+            }
+        }
+        buffer.flip();
+        int filled = buffer.limit();
+        if (filled == 0)
+            return false;
+
+        //Only full chunks are encrypted
+        long started = System.nanoTime();
+        long chunk = bufferOffset / 2048;
+        for (int offset = 0; offset + 2048 <= filled; offset += 2048, chunk++) {
+            if ((chunk % 3) == 0)
+                engine.decryptChunk(buffer, offset);
+        }
+        decryptNanos += System.nanoTime() - started;
+        sourceOffset += filled;
+        return true;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (buffer == null)
+            throw new ClosedChannelException();
+        if (!buffer.hasRemaining() && (eof || !fill()))
+            return -1;
+
+        int output = Math.min(dst.remaining(), buffer.remaining());
+        int limit = buffer.limit();
+        buffer.limit(buffer.position() + output);
+        dst.put(buffer);
+        buffer.limit(limit);
+        position += output;
+        return output;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return buffer != null;
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (buffer != null) {
+            BufferPool.release(buffer);
+            buffer = null;
+            if (metrics != null && decryptNanos > 0)
+                metrics.decrypt.recordNanos(decryptNanos);
+        }
+        source.close();
+    }
+}
@@ -19,21 +19,18 @@ import org.json.JSONException;
 import org.json.JSONObject;
 
 import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.InputStream;
-import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.RandomAccessFile;
-import java.net.URL;
+import java.net.HttpURLConnection;
+import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
-import java.util.Scanner;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
-import javax.net.ssl.HttpsURLConnection;
 
 import definitely.not.deezer.models.Lyrics;
 import definitely.not.deezer.models.LyricsNew;
@@ -41,15 +38,22 @@ import definitely.not.deezer.models.SynchronizedLyric;
 
 public class Deezer {
 
+    //Shared by all instances, limits not announced by Deezer except public API (50 requests / 5s)
+    static final RateLimiter PUBLIC_API = new RateLimiter("api", 50, 5000);
+    static final RateLimiter GW_API = new RateLimiter("gw-light", 25, 1000);
+    static final RateLimiter PIPE_API = new RateLimiter("pipe", 25, 1000);
+    static final RateLimiter MEDIA_API = new RateLimiter("media", 25, 1000);
+    //Quota errors retried after backoff, then returned to caller
+    static final int QUOTA_RETRIES = 5;
+    static final int PUBLIC_API_QUOTA_CODE = 4;
+    static final String GW_QUOTA_ERROR = "QUOTA_ERROR";
+    //Identical concurrent API calls share one request, result is shared too so callers mustn't modify it
+    private static final SingleFlight<JSONObject> calls = new SingleFlight<>();
+
     static String USER_AGENT = "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/79.0.3945.130 Safari/537.36";
     DownloadLog logger;
-    String token;
     String arl;
-    String sid;
-    String licenseToken;
     String contentLanguage = "en";
-    boolean authorized = false;
-    boolean authorizing = false;
 
     Deezer() {}
 
@@ -65,124 +69,129 @@ public class Deezer {
     // Method for when using c libraries for decryption
     //public native void decryptFile(String trackId, String inputFilename, String outputFilename);
 
-    //Authorize GWLight API
-    public void authorize() {
-        if (!authorized || sid == null || token == null) {
-            authorizing = true;
-            try {
-                callGWAPI("deezer.getUserData", "{}");
-                authorized = true;
-            } catch (Exception e) {
-                logger.warn("Error authorizing to Deezer API! " + e);
-            }
-        }
-        authorizing = false;
+    //Login state shared with other instances of the same ARL
+    DeezerSession session() {
+        return DeezerSession.get(arl);
     }
 
-    //Make POST request
-    private String POST(String _url, String data,  Map<String, String> additionalHeaders) {
-        String result = null;
+    //Authorize GWLight API, waits for login of other threads
+    public boolean authorize() {
+        return session().authorize(this);
+    }
 
-        try {
-            URL url = new URL(_url);
-            HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
-            connection.setConnectTimeout(20000);
-            connection.setDoOutput(true);
-            connection.setRequestMethod("POST");
-            connection.setRequestProperty("User-Agent", USER_AGENT);
-            connection.setRequestProperty("Accept-Language", contentLanguage + ",*");
-            connection.setRequestProperty("Content-Type", "application/json");
-            connection.setRequestProperty("Accept", "*/*");
-
-            // Add additional headers if provided
-            if (additionalHeaders != null && !additionalHeaders.isEmpty()) {
-                for (Map.Entry<String, String> entry : additionalHeaders.entrySet()) {
-                    connection.setRequestProperty(entry.getKey(), entry.getValue());
-                }
-            }
+    //Make POST request with UTF-8 JSON body, response parsed while downloading
+    private JSONObject POST(String _url, String data,  Map<String, String> additionalHeaders) throws Exception {
+        HttpURLConnection connection = HttpClient.open(_url);
+        connection.setDoOutput(true);
+        connection.setRequestMethod("POST");
+        connection.setRequestProperty("Accept-Language", contentLanguage + ",*");
+        connection.setRequestProperty("Accept-Encoding", "gzip");
+        connection.setRequestProperty("Content-Type", "application/json; charset=utf-8");
 
-            //Write body
-            if (data != null) {
-                try (DataOutputStream wr = new DataOutputStream(connection.getOutputStream())) {
-                    wr.writeBytes(data);
-                }
+        // Add additional headers if provided
+        if (additionalHeaders != null && !additionalHeaders.isEmpty()) {
+            for (Map.Entry<String, String> entry : additionalHeaders.entrySet()) {
+                connection.setRequestProperty(entry.getKey(), entry.getValue());
             }
+        }
 
-            //Get response
-            try (Scanner scanner = new Scanner(connection.getInputStream())) {
-                StringBuilder output = new StringBuilder();
-                while (scanner.hasNext()) {
-                    output.append(scanner.nextLine());
-                }
-                result = output.toString();
+        //Write body
+        if (data != null) {
+            byte[] body = data.getBytes(StandardCharsets.UTF_8);
+            connection.setFixedLengthStreamingMode(body.length);
+            try (OutputStream outputStream = connection.getOutputStream()) {
+                outputStream.write(body);
             }
-        } catch (Exception e) {
-            e.printStackTrace();
         }
 
-        return result;
+        //Get response
+        return HttpClient.readJson(connection);
     }
 
     public JSONObject callGWAPI(String method, String body) throws Exception {
-        //Get token
-        if (token == null) {
-            token = "null";
-            callGWAPI("deezer.getUserData", "{}");
+        return calls.run("gw\n" + arl + "\n" + method + "\n" + body, () -> gwCall(method, body));
+    }
+
+    private JSONObject gwCall(String method, String body) throws Exception {
+        DeezerSession session = session();
+        session.authorize(this);
+        JSONObject out = gwRequest(method, body, session.token(), session.sid());
+        //Token expired before its cached expiry
+        if (isInvalidToken(out)) {
+            session.invalidate();
+            session.authorize(this);
+            out = gwRequest(method, body, session.token(), session.sid());
         }
+        return out;
+    }
 
+    //Request without session handling, token "null" to log in
+    JSONObject gwRequest(String method, String body, String token, String sid) throws Exception {
         // Construct cookie header
         Map<String, String> cookies = new HashMap<>();
         cookies.put("Cookie", "arl=" + arl + (sid == null ? "" : "; sid=" + sid));
 
-        String data = POST(
+        return limited(GW_API, () -> POST(
                 "https://www.deezer.com/ajax/gw-light.php?method=" + method + "&input=3&api_version=1.0&api_token=" + token,
                 body,
                 cookies
-        );
-
-        //Parse JSON
-        JSONObject out = new JSONObject(data);
-
-        //Save token
-        if ((token == null || token.equals("null")) && method.equals("deezer.getUserData")) {
-            token = out.getJSONObject("results").getString("checkForm");
-            sid = out.getJSONObject("results").getString("SESSION_ID");
+        ));
+    }
 
-            // Get User license code
+    /**
+     * Send request when limiter allows, and retry it after backoff while API reports exceeded quota.
+     * @return Response, with quota error if retries ran out
+     */
+    JSONObject limited(RateLimiter limiter, SingleFlight.Call<JSONObject> request) throws Exception {
+        for (int attempt = 0; ; attempt++) {
+            limiter.acquire();
+            long retryAfter = 0;
             try {
-                JSONObject userData = out.getJSONObject("results").getJSONObject("USER");
-                licenseToken = userData.getJSONObject("OPTIONS").getString("license_token");
-            } catch (JSONException e) {
-                e.printStackTrace();
-                logger.warn("Error getting user License Token - FLAC not available! " + e);
+                JSONObject response = request.call();
+                if (!isQuotaError(response)) {
+                    limiter.success();
+                    return response;
+                }
+                if (attempt >= QUOTA_RETRIES)
+                    return response;
+            } catch (RateLimiter.QuotaException e) {
+                if (attempt >= QUOTA_RETRIES)
+                    throw e;
+                retryAfter = e.retryAfter;
             }
+            long pause = limiter.backoff(retryAfter);
+            logger.warn("Deezer " + limiter.name + " quota exceeded, waiting " + pause + "ms");
         }
+    }
 
-        return out;
+    //Public API: {"error": {"code": 4, "message": "Quota limit exceeded"}}, GW: {"error": {"QUOTA_ERROR": ...}}
+    static boolean isQuotaError(JSONObject response) {
+        JSONObject error = response.optJSONObject("error");
+        if (error == null)
+            return false;
+        return error.optInt("code") == PUBLIC_API_QUOTA_CODE || error.has(GW_QUOTA_ERROR);
+    }
+
+    private static boolean isInvalidToken(JSONObject response) {
+        JSONObject error = response.optJSONObject("error");
+        return error != null && error.has("VALID_TOKEN_REQUIRED");
     }
 
     //api.deezer.com/$method/$param
     public JSONObject callPublicAPI(String method, String param) throws Exception {
-        URL url = new URL("https://api.deezer.com/" + method + "/" + param);
-        HttpsURLConnection connection = (HttpsURLConnection)url.openConnection();
+        return calls.run("api\n" + contentLanguage + "\n" + method + "/" + param,
+                () -> limited(PUBLIC_API, () -> publicRequest(method, param)));
+    }
+
+    private JSONObject publicRequest(String method, String param) throws Exception {
+        HttpURLConnection connection = HttpClient.open("https://api.deezer.com/" + method + "/" + param);
         connection.setRequestMethod("GET");
         connection.setRequestProperty("Accept-Language", contentLanguage + ",*");
-        connection.setConnectTimeout(20000);
+        connection.setRequestProperty("Accept-Encoding", "gzip");
         connection.connect();
 
-        //Get string data
-        StringBuilder data = new StringBuilder();
-        InputStream inputStream = connection.getInputStream();
-        try (Scanner scanner = new Scanner(new InputStreamReader(inputStream))) {
-            while (scanner.hasNext()) {
-                data.append(scanner.nextLine());
-            }
-        } finally {
-            connection.disconnect();
-        }
-
         //Parse JSON & return
-        return new JSONObject(data.toString());
+        return HttpClient.readJson(connection);
     }
 
     // Method to call the Pipe API
@@ -196,6 +205,7 @@ public class Deezer {
         }
 
         // Headers
+        String sid = session().sid();
         Map<String, String> headers = new HashMap<>();
         headers.put("Cookie", "arl=" + arl + (sid == null ? "" : "; sid=" + sid));
         headers.put("Authorization", "Bearer " + jwtToken);
@@ -207,21 +217,24 @@ public class Deezer {
             paramsJsonString = paramsJsonObject.toString();
         }
 
-        String response = POST("https://pipe.deezer.com/api/", paramsJsonString, headers);
-        // Return response as JSONObject
-        return new JSONObject(response);
+        String body = paramsJsonString;
+        return calls.run("pipe\n" + arl + "\n" + body,
+                () -> limited(PIPE_API, () -> POST("https://pipe.deezer.com/api/", body, headers)));
+    }
+
+    // Method to get JSON Web Token, cached until it expires
+    public String getJsonWebToken() throws Exception {
+        return session().jwt(this);
     }
 
-    // Method to get JSON Web Token
-    public String getJsonWebToken() throws Exception{
+    String fetchJsonWebToken() throws Exception {
         String urlString = "https://auth.deezer.com/login/arl?jo=p&rto=c&i=c";
+        String sid = session().sid();
         Map<String, String> cookies = new HashMap<>();
         cookies.put("Cookie", "arl=" + arl + (sid == null ? "" : "; sid=" + sid));
-        String response = POST(urlString, "", cookies);
+        JSONObject body = POST(urlString, "", cookies);
 
-        // Parse JSON and return JWT
-        JSONObject body = null;
-        body = new JSONObject(response);
+        // Return JWT
         return body.has("jwt") ? body.getString("jwt") : "";
     }
 
@@ -323,7 +336,8 @@ public class Deezer {
     public Pair<String, Boolean> getTrackUrl(String trackId, String trackToken, String md5origin, String mediaVersion,
             int quality, int refreshAttempt) {
         // Hi-Fi url gen
-        if (this.licenseToken != null && (quality > 0)) {
+        String licenseToken = session().licenseToken();
+        if (licenseToken != null && (quality > 0)) {
             String url = null;
             String format = "FLAC";
 
@@ -343,9 +357,7 @@ public class Deezer {
                         "\"media\": [{ \"type\": \"FULL\", \"formats\": [{ \"cipher\": \"BF_CBC_STRIPE\", \"format\": \"" + format + "\"}]}],\n" +
                         "\"track_tokens\": [\"" + trackToken + "\"]\n" +
                         "}";
-                String output = POST("https://media.deezer.com/v1/get_url", payload, cookies);
-
-                JSONObject result = new JSONObject(output);
+                JSONObject result = limited(MEDIA_API, () -> POST("https://media.deezer.com/v1/get_url", payload, cookies));
 
                 if (result.has("data")){
                     for (int i = 0; i < result.getJSONArray("data").length(); i++){
@@ -640,6 +652,8 @@ public class Deezer {
         int initialQuality;
         DownloadLog logger;
         boolean encrypted;
+        //Size of the selected file from HEAD request, -1 if unknown
+        long size = -1;
 
         QualityInfo(int quality, String trackId, String trackToken, String md5origin, String mediaVersion, DownloadLog logger) {
             this.quality = quality;
@@ -718,13 +732,13 @@ public class Deezer {
 
             if (urlGen.first != null) {
                 //Create HEAD requests to check if exists
-                URL url = new URL(urlGen.first);
-                HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
+                HttpURLConnection connection = HttpClient.open(urlGen.first);
                 connection.setRequestMethod("HEAD");
-                connection.setRequestProperty("User-Agent", USER_AGENT);
                 connection.setRequestProperty("Accept-Language", "*");
-                connection.setRequestProperty("Accept", "*/*");
                 urlResponseCode = connection.getResponseCode();
+                String contentLength = connection.getHeaderField("Content-Length");
+                size = (contentLength == null) ? -1 : Long.parseLong(contentLength);
+                HttpClient.release(connection);
             }
             //Track not available
             if (urlResponseCode > 400) {
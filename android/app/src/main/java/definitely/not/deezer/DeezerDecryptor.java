@@ -1,29 +1,40 @@
 package definitely.not.deezer;
 
-import android.util.Log;
-
 import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
 import java.security.MessageDigest;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import javax.crypto.Cipher;
 import javax.crypto.spec.SecretKeySpec;
 import javax.crypto.spec.IvParameterSpec;
 
 public class DeezerDecryptor {
-    private final Cipher cipher;
+    //Files smaller than this are decrypted sequentially, splitting isn't worth it
+    static final long PARALLEL_THRESHOLD = 8 * 1024 * 1024;
+    //Size of memory mapped window for in place decryption, unit of parallel work.
+    //Multiple of 3 chunks, so every window starts with an encrypted chunk
+    static final int MAP_WINDOW = 3 * 256 * 2048;
+
+    private final byte[] key;
+    private final String trackId;
 
     /**
-     * Constructor initializes the key and cipher for the given track ID.
+     * Constructor initializes the key for the given track ID.
      * @param trackId Track ID used to generate decryption key
-     * @throws Exception If there is an issue initializing the cipher
+     * @throws Exception If there is an issue generating the key
      */
     public DeezerDecryptor(String trackId) throws Exception {
-        this.cipher = Cipher.getInstance("Blowfish/CBC/NoPadding");
-        byte[] IV = {00, 01, 02, 03, 04, 05, 06, 07};
-        SecretKeySpec Skey = new SecretKeySpec(getKey(trackId), "Blowfish");
-        cipher.init(Cipher.DECRYPT_MODE, Skey, new IvParameterSpec(IV));
+        this.trackId = trackId;
+        this.key = getKey(trackId);
+        if (key.length == 0)
+            throw new Exception("Failed generating key for track " + trackId);
     }
 
     /**
@@ -34,21 +45,98 @@ public class DeezerDecryptor {
      */
     public void decryptFile(String inputFilename, String outputFilename) throws IOException {
         try (FileInputStream fis = new FileInputStream(inputFilename);
-             FileOutputStream fos = new FileOutputStream(outputFilename)) {
-            byte[] buffer = new byte[2048];
-            int bytesRead;
-            int chunkCounter = 0;
+             FileOutputStream fos = new FileOutputStream(outputFilename);
+             DecryptingChannel input = new DecryptingChannel(fis.getChannel(), BlowfishEngine.forTrack(trackId), 0)) {
+            FileChannel output = fos.getChannel();
+            ByteBuffer buffer = BufferPool.acquire();
+            try {
+                while (input.read(buffer) != -1) {
+                    buffer.flip();
+                    while (buffer.hasRemaining())
+                        output.write(buffer);
+                    buffer.clear();
+                }
+            } finally {
+                BufferPool.release(buffer);
+            }
+        }
+    }
 
-            while ((bytesRead = fis.read(buffer)) != -1) {
-                // Only every 3rd chunk of exactly 2048 bytes should be decrypted
-                if (bytesRead == 2048 && (chunkCounter % 3) == 0) {
-                    buffer = decryptChunk(buffer);
+    /**
+     * Decrypts a complete encrypted file in place. The file is memory mapped in windows and only every 3rd
+     * chunk is decrypted directly in the mapping, the other chunks are never read or written.
+     * Windows of large files are decrypted in parallel on the common fork-join pool,
+     * every chunk is an independent CBC run with the same IV, so order doesn't matter.
+     * An interrupted decryption leaves the file partially decrypted, so it must not be resumed from.
+     * @param filename The file to decrypt
+     * @throws IOException If an I/O error occurs
+     */
+    public void decryptFileInPlace(String filename) throws IOException {
+        BlowfishEngine engine = BlowfishEngine.forTrack(trackId);
+        try (RandomAccessFile raf = new RandomAccessFile(filename, "rw")) {
+            FileChannel channel = raf.getChannel();
+            long size = channel.size();
+            long windows = (size + MAP_WINDOW - 1) / MAP_WINDOW;
+            //Small files or single core
+            if (size < PARALLEL_THRESHOLD || Runtime.getRuntime().availableProcessors() < 2) {
+                for (long window = 0; window < windows; window++)
+                    decryptWindow(channel, engine, window);
+                return;
+            }
+            try {
+                ForkJoinPool.commonPool().invoke(new DecryptWindows(channel, engine, 0, windows));
+            } catch (RuntimeException e) {
+                //Fork join can rewrap the exception when rethrowing from another thread
+                for (Throwable cause = e.getCause(); cause != null; cause = cause.getCause()) {
+                    if (cause instanceof IOException)
+                        throw (IOException) cause;
                 }
-                fos.write(buffer, 0, bytesRead);
-                chunkCounter++;
+                throw new IOException("Decryption error: " + e, e);
+            }
+        }
+    }
+
+    //Engine only reads its key schedule and mapping is per window, safe from multiple threads
+    private static void decryptWindow(FileChannel channel, BlowfishEngine engine, long window) throws IOException {
+        long position = window * MAP_WINDOW;
+        int length = (int) Math.min(MAP_WINDOW, channel.size() - position);
+        MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_WRITE, position, length);
+        //Window starts on encrypted chunk, trailing partial chunk isn't encrypted
+        for (int offset = 0; offset + 2048 <= length; offset += 3 * 2048) {
+            engine.decryptChunk(mapped, offset);
+        }
+        mapped.force();
+    }
+
+    //Splits range of windows in half until single window is left
+    private static class DecryptWindows extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final FileChannel channel;
+        private final BlowfishEngine engine;
+        private final long from;
+        private final long to;
+
+        DecryptWindows(FileChannel channel, BlowfishEngine engine, long from, long to) {
+            this.channel = channel;
+            this.engine = engine;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > 1) {
+                long middle = (from + to) >>> 1;
+                invokeAll(new DecryptWindows(channel, engine, from, middle),
+                        new DecryptWindows(channel, engine, middle, to));
+                return;
+            }
+            try {
+                decryptWindow(channel, engine, from);
+            } catch (IOException e) {
+                throw new RuntimeException(e);
             }
-        } catch (IOException e) {
-            throw e;
         }
     }
 
@@ -74,36 +162,22 @@ public class DeezerDecryptor {
      * @return Decryption key for Track
      */
     static byte[] getKey(String id) {
-        final String secret = "g4el58wc0zvf9na1";
+        final byte[] secret = {'g', '4', 'e', 'l', '5', '8', 'w', 'c', '0', 'z', 'v', 'f', '9', 'n', 'a', '1'};
+        final byte[] HEX = {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
         try {
             MessageDigest md5 = MessageDigest.getInstance("MD5");
-            md5.update(id.getBytes());
-            byte[] md5id = md5.digest();
-            String idmd5 = bytesToHex(md5id).toLowerCase();
-            String key = "";
+            byte[] md5id = md5.digest(id.getBytes());
+            //XOR lowercase hex digits of both MD5 halves with secret
+            byte[] key = new byte[16];
             for (int i = 0; i < 16; i++) {
-                int s0 = idmd5.charAt(i);
-                int s1 = idmd5.charAt(i + 16);
-                int s2 = secret.charAt(i);
-                key += (char) (s0 ^ s1 ^ s2);
+                int s0 = HEX[(md5id[i / 2] >>> ((i % 2 == 0) ? 4 : 0)) & 0x0F];
+                int s1 = HEX[(md5id[8 + i / 2] >>> ((i % 2 == 0) ? 4 : 0)) & 0x0F];
+                key[i] = (byte) (s0 ^ s1 ^ secret[i]);
             }
-            return key.getBytes();
-        } catch (Exception e) {
-            Log.e("E", e.toString());
-            return new byte[0];
-        }
-    }
-
-    /**
-     * Decrypts a 2048-byte chunk of data using the pre-initialized Blowfish cipher.
-     * @param data 2048-byte chunk of data to decrypt
-     * @return Decrypted 2048-byte chunk
-     */
-    private byte[] decryptChunk(byte[] data) {
-        try {
-            return cipher.doFinal(data);
+            return key;
         } catch (Exception e) {
-            Log.e("D", e.toString());
+            //No android.util.Log, decryption classes also run on plain JVM (benchmark)
+            e.printStackTrace();
             return new byte[0];
         }
     }
@@ -123,7 +197,7 @@ public class DeezerDecryptor {
             cipher.init(Cipher.DECRYPT_MODE, Skey, new IvParameterSpec(IV));
             return cipher.doFinal(data);
         } catch (Exception e) {
-            Log.e("D", e.toString());
+            e.printStackTrace();
             return new byte[0];
         }
     }
@@ -0,0 +1,174 @@
+package definitely.not.deezer;
+
+import android.util.Base64;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deezer login state per ARL, shared by all Deezer instances of the process.
+ * Concurrent callers wait for a single authorization, tokens are cached until they expire
+ * and the session is refreshed in background shortly before, as long as it's being used.
+ */
+public class DeezerSession {
+    //Lifetime of checkForm & sid, not announced by Deezer
+    static final long SESSION_TTL = 60 * 60 * 1000;
+    //Lifetime of JWT without exp claim
+    static final long JWT_TTL = 5 * 60 * 1000;
+    //Tokens are renewed this long before expiry
+    static final long REFRESH_MARGIN = 60 * 1000;
+
+    private static final HashMap<String, DeezerSession> sessions = new HashMap<>();
+    private static final ScheduledExecutorService refresher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "DeezerSession");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    final String arl;
+    private final SingleFlight<Boolean> logins = new SingleFlight<>();
+    private final SingleFlight<String> jwts = new SingleFlight<>();
+    private String token;
+    private String sid;
+    private String licenseToken;
+    private long expires = 0;
+    private long lastUsed = 0;
+    private String jwt;
+    private long jwtExpires = 0;
+
+    private DeezerSession(String arl) {
+        this.arl = arl;
+    }
+
+    //Session of ARL in this process
+    static synchronized DeezerSession get(String arl) {
+        String key = (arl == null) ? "" : arl;
+        DeezerSession session = sessions.get(key);
+        if (session == null) {
+            session = new DeezerSession(arl);
+            sessions.put(key, session);
+        }
+        return session;
+    }
+
+    synchronized String token() {
+        lastUsed = System.currentTimeMillis();
+        return token;
+    }
+
+    synchronized String sid() {
+        return sid;
+    }
+
+    synchronized String licenseToken() {
+        lastUsed = System.currentTimeMillis();
+        return licenseToken;
+    }
+
+    synchronized boolean isAuthorized() {
+        return token != null && sid != null && System.currentTimeMillis() < expires;
+    }
+
+    //Token was rejected before expiry
+    synchronized void invalidate() {
+        expires = 0;
+    }
+
+    /**
+     * Log in unless already authorized, concurrent callers share one request.
+     * @return false if login failed
+     */
+    boolean authorize(Deezer deezer) {
+        if (isAuthorized())
+            return true;
+        try {
+            return logins.run("login", () -> isAuthorized() || login(deezer));
+        } catch (Exception e) {
+            deezer.logger.warn("Error authorizing to Deezer API! " + e);
+            return false;
+        }
+    }
+
+    private boolean login(Deezer deezer) throws Exception {
+        JSONObject results = deezer.gwRequest("deezer.getUserData", "{}", "null", null).getJSONObject("results");
+        String licenseToken = null;
+        long expires = System.currentTimeMillis() + SESSION_TTL;
+        try {
+            JSONObject options = results.getJSONObject("USER").getJSONObject("OPTIONS");
+            licenseToken = options.getString("license_token");
+            //License token expires too
+            long licenseExpires = options.optLong("expiration_timestamp", 0) * 1000;
+            if (licenseExpires > System.currentTimeMillis())
+                expires = Math.min(expires, licenseExpires);
+        } catch (JSONException e) {
+            e.printStackTrace();
+            deezer.logger.warn("Error getting user License Token - FLAC not available! " + e);
+        }
+        synchronized (this) {
+            this.token = results.getString("checkForm");
+            this.sid = results.getString("SESSION_ID");
+            this.licenseToken = licenseToken;
+            this.expires = expires;
+            if (lastUsed == 0)
+                lastUsed = System.currentTimeMillis();
+        }
+        scheduleRefresh(deezer, expires);
+        return true;
+    }
+
+    //Renew before expiry, unless nothing used the session since last login
+    private void scheduleRefresh(Deezer deezer, long expires) {
+        long delay = Math.max(0, expires - REFRESH_MARGIN - System.currentTimeMillis());
+        refresher.schedule(() -> {
+            synchronized (this) {
+                if (this.expires != expires || System.currentTimeMillis() - lastUsed > SESSION_TTL)
+                    return;
+            }
+            try {
+                logins.run("login", () -> login(deezer));
+            } catch (Exception e) {
+                deezer.logger.warn("Error refreshing Deezer session! " + e);
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    //Cached JSON Web Token for pipe API
+    String jwt(Deezer deezer) throws Exception {
+        synchronized (this) {
+            if (jwt != null && System.currentTimeMillis() < jwtExpires)
+                return jwt;
+        }
+        return jwts.run("jwt", () -> {
+            synchronized (this) {
+                if (jwt != null && System.currentTimeMillis() < jwtExpires)
+                    return jwt;
+            }
+            String jwt = deezer.fetchJsonWebToken();
+            //Not logged in, don't cache
+            if (jwt.isEmpty())
+                return jwt;
+            synchronized (this) {
+                this.jwt = jwt;
+                this.jwtExpires = jwtExpiry(jwt) - REFRESH_MARGIN;
+            }
+            return jwt;
+        });
+    }
+
+    //exp claim of JWT in milliseconds
+    private static long jwtExpiry(String jwt) {
+        try {
+            String payload = jwt.split("\\.")[1];
+            JSONObject claims = new JSONObject(new String(Base64.decode(payload, Base64.URL_SAFE | Base64.NO_WRAP | Base64.NO_PADDING), StandardCharsets.UTF_8));
+            if (claims.has("exp"))
+                return claims.getLong("exp") * 1000;
+        } catch (Exception ignored) {}
+        return System.currentTimeMillis() + JWT_TTL;
+    }
+}
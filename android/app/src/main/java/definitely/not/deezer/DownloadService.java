@@ -35,14 +35,15 @@ import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.RandomAccessFile;
 import java.net.HttpURLConnection;
-import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
 import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.text.DecimalFormat;
 import java.util.ArrayList;
 
-import javax.net.ssl.HttpsURLConnection;
-
 import definitely.not.deezer.models.Lyrics;
 import definitely.not.deezer.models.LyricsClassic;
 
@@ -58,6 +59,7 @@ public class DownloadService extends Service {
     static final int SERVICE_REMOVE_DOWNLOAD = 7;
     static final int SERVICE_RETRY_DOWNLOADS = 8;
     static final int SERVICE_REMOVE_DOWNLOADS = 9;
+    static final int SERVICE_ON_OFFLINE_UPDATE = 10;
 
     static final String NOTIFICATION_CHANNEL_ID = "alchemydownloads";
     static final int NOTIFICATION_ID_START = 6969;
@@ -96,6 +98,9 @@ public class DownloadService extends Service {
         //Setup logger, deezer api
         logger.open(context);
         deezer.init(logger, "");
+        HttpClient.prewarm(HttpClient.DEEZER_URLS);
+        //Downloads of killed process aren't running anymore
+        InFlightDownload.clear(getCacheDir());
 
         //Get DB
         DownloadsDatabase dbHelper = new DownloadsDatabase(getApplicationContext());
@@ -170,6 +175,13 @@ public class DownloadService extends Service {
                     sendBroadcast(new Intent(Intent.ACTION_MEDIA_SCANNER_SCAN_FILE, uri));
                 }
 
+                //Update offline catalog of stream server
+                if (state == Download.DownloadState.DONE && d.priv && threads.get(i).outFile != null) {
+                    Bundle b = new Bundle();
+                    b.putString("path", threads.get(i).outFile.getPath());
+                    sendMessage(SERVICE_ON_OFFLINE_UPDATE, b);
+                }
+
                 //Remove thread
                 threads.remove(i);
             }
@@ -300,15 +312,8 @@ public class DownloadService extends Service {
             //Set state
             download.state = Download.DownloadState.DOWNLOADING;
 
-            //Authorize deezer api
-            if (!deezer.authorized && !deezer.authorizing)
-                deezer.authorize();
-
-            while (deezer.authorizing)
-                try {
-                    Thread.sleep(50);
-                } catch (Exception ignored) {
-                }
+            //Authorize deezer api, threads share one login
+            deezer.authorize();
 
             //Don't fetch meta if user uploaded mp3
             if (!download.isUserUploaded() && !download.isEpisode) {
@@ -324,7 +329,7 @@ public class DownloadService extends Service {
                 }
             }
 
-            //Temporary encrypted file
+            //Temporary encrypted file (episodes, or partial downloads from before streaming decryption)
             File tmpFile = new File(getCacheDir(), download.id + ".ENC");
             
             if (!download.isEpisode) {
@@ -379,82 +384,141 @@ public class DownloadService extends Service {
                 }
     
     
-                //Get start bytes offset
-                long start = 0;
-                if (tmpFile.exists()) {
-                    start = tmpFile.length();
+                //Fully streamed already, copy from stream cache instead of downloading again
+                File cachedFile = new File(getCacheDir(), download.id + ".CACHE");
+                boolean fromCache = false;
+                if (!download.isUserUploaded()) {
+                    try {
+                        fromCache = StreamCache.export(new File(getCacheDir(), StreamCache.DIR), download.streamTrackId, qualityInfo.trackId, qualityInfo.quality, qualityInfo.size, cachedFile);
+                    } catch (Exception e) {
+                        logger.warn("Failed copying track from stream cache: " + e.toString(), download);
+                        cachedFile.delete();
+                    }
                 }
+
+                if (fromCache) {
+                    //Partial downloads aren't needed anymore
+                    tmpFile.delete();
+                    new File(getCacheDir(), download.id + ".DEC").delete();
+                    tmpFile = cachedFile;
+                    download.filesize = tmpFile.length();
+                    download.received = download.filesize;
+                    download.state = Download.DownloadState.POST;
+                    updateProgress();
+                } else {
+                    //Decrypt while downloading, unless resuming an old encrypted partial download
+                    boolean streamDecrypt = qualityInfo.encrypted && !tmpFile.exists();
+                    if (streamDecrypt)
+                        tmpFile = new File(getCacheDir(), download.id + ".DEC");
+
+                    //Get start bytes offset
+                    long start = 0;
+                    if (tmpFile.exists()) {
+                        start = tmpFile.length();
+                        //Resume from chunk boundary, so the decryptor knows which chunks to decrypt
+                        if (streamDecrypt && start % 2048 != 0) {
+                            start -= start % 2048;
+                            try (RandomAccessFile raf = new RandomAccessFile(tmpFile, "rw")) {
+                                raf.setLength(start);
+                            } catch (Exception e) {
+                                logger.warn("Failed truncating partial download, restarting: " + e.toString(), download);
+                                tmpFile.delete();
+                                start = 0;
+                            }
+                        }
+                    }
     
-                //Download
-                try {
-                    URL url = new URL(sURL);
-                    HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
-                    //Set headers
-                    connection.setConnectTimeout(30000);
-                    connection.setRequestMethod("GET");
-                    connection.setRequestProperty("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/79.0.3945.130 Safari/537.36");
-                    connection.setRequestProperty("Accept-Language", "*");
-                    connection.setRequestProperty("Accept", "*/*");
-                    connection.setRequestProperty("Range", "bytes=" + start + "-");
-                    connection.connect();
-    
-                    //Open streams
-                    BufferedInputStream inputStream = new BufferedInputStream(connection.getInputStream());
-                    OutputStream outputStream = new FileOutputStream(tmpFile.getPath(), true);
-                    //Save total
-                    download.filesize = start + connection.getContentLength();
                     //Download
-                    byte[] buffer = new byte[8192];
-                    long received = 0;
-                    int read;
-                    while ((read = inputStream.read(buffer, 0, 8192)) != -1) {
-                        outputStream.write(buffer, 0, read);
-                        received += read;
-                        download.received = start + received;
+                    File inFlight = null;
+                    ByteBuffer buffer = BufferPool.acquire();
+                    try {
+                        HttpURLConnection connection = HttpClient.open(sURL);
+                        //Set headers
+                        connection.setRequestMethod("GET");
+                        connection.setRequestProperty("Accept-Language", "*");
+                        connection.setRequestProperty("Range", "bytes=" + start + "-");
+                        connection.connect();
     
-                        //Stop/Cancel download
-                        if (stopDownload) {
-                            download.state = Download.DownloadState.NONE;
+                        //Open channels
+                        ReadableByteChannel inputChannel = Channels.newChannel(connection.getInputStream());
+                        if (streamDecrypt)
+                            inputChannel = new DecryptingChannel(inputChannel, BlowfishEngine.forTrack(download.streamTrackId), start);
+                        FileChannel outputChannel = new FileOutputStream(tmpFile.getPath(), true).getChannel();
+                        //Save total
+                        download.filesize = start + connection.getContentLength();
+                        //Let StreamServer play the track meanwhile, file has to be plain
+                        if ((streamDecrypt || !qualityInfo.encrypted) && connection.getContentLength() >= 0) {
                             try {
-                                inputStream.close();
-                                outputStream.close();
-                                connection.disconnect();
-                            } catch (Exception ignored) {
+                                inFlight = InFlightDownload.publish(getCacheDir(), download.streamTrackId, tmpFile, qualityInfo.trackId, qualityInfo.quality, download.filesize);
+                            } catch (Exception e) {
+                                logger.warn("Failed publishing in-flight download: " + e.toString(), download);
                             }
-                            exit();
-                            return;
                         }
-                    }
-                    //On done
-                    inputStream.close();
-                    outputStream.close();
-                    connection.disconnect();
-                    //Update
-                    download.state = Download.DownloadState.POST;
-                    updateProgress();
-                } catch (Exception e) {
-                    //Download error
-                    logger.error("Download error: " + e.toString(), download);
-                    e.printStackTrace();
-                    download.state = Download.DownloadState.ERROR;
-                    exit();
-                    return;
-                }
-    
-                //Post processing
+                        //Download
+                        long received = 0;
+                        long heartbeat = System.currentTimeMillis();
+                        int read;
+                        while ((read = inputChannel.read(buffer)) != -1) {
+                            buffer.flip();
+                            while (buffer.hasRemaining())
+                                outputChannel.write(buffer);
+                            buffer.clear();
+                            received += read;
+                            download.received = start + received;
+                            if (inFlight != null && System.currentTimeMillis() - heartbeat >= InFlightDownload.HEARTBEAT_INTERVAL) {
+                                InFlightDownload.heartbeat(inFlight);
+                                heartbeat = System.currentTimeMillis();
+                            }
     
-                //Decrypt
-                if (qualityInfo.encrypted) {
-                    try {
-                        File decFile = new File(tmpFile.getPath() + ".DEC");
-                        DeezerDecryptor decryptor = new DeezerDecryptor(download.streamTrackId);
-                        decryptor.decryptFile(tmpFile.getPath(), decFile.getPath());
-                        tmpFile.delete();
-                        tmpFile = decFile;
+                            //Stop/Cancel download
+                            if (stopDownload) {
+                                download.state = Download.DownloadState.NONE;
+                                try {
+                                    inputChannel.close();
+                                    outputChannel.close();
+                                    connection.disconnect();
+                                } catch (Exception ignored) {
+                                }
+                                exit();
+                                return;
+                            }
+                        }
+                        //On done, closing after EOF returns connection to pool
+                        inputChannel.close();
+                        outputChannel.close();
+                        //Update
+                        download.state = Download.DownloadState.POST;
+                        updateProgress();
                     } catch (Exception e) {
-                        logger.error("Decryption error: " + e.toString(), download);
+                        //Download error
+                        logger.error("Download error: " + e.toString(), download);
                         e.printStackTrace();
-                        //Shouldn't ever fail
+                        download.state = Download.DownloadState.ERROR;
+                        exit();
+                        return;
+                    } finally {
+                        BufferPool.release(buffer);
+                        if (inFlight != null)
+                            inFlight.delete();
+                    }
+    
+                    //Post processing
+    
+                    //Decrypt old encrypted partial download in place,
+                    //renamed first so an interrupted decryption never gets resumed
+                    if (qualityInfo.encrypted && !streamDecrypt) {
+                        try {
+                            File decFile = new File(tmpFile.getPath() + ".DEC");
+                            if (!tmpFile.renameTo(decFile))
+                                throw new Exception("Failed renaming " + tmpFile.getPath());
+                            tmpFile = decFile;
+                            DeezerDecryptor decryptor = new DeezerDecryptor(download.streamTrackId);
+                            decryptor.decryptFileInPlace(tmpFile.getPath());
+                        } catch (Exception e) {
+                            logger.error("Decryption error: " + e.toString(), download);
+                            e.printStackTrace();
+                            //Shouldn't ever fail
+                        }
                     }
                 }
     
@@ -501,14 +565,10 @@ public class DownloadService extends Service {
                 }
 
                 try {
-                    URL url = new URL(download.url);
-                    HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
+                    HttpURLConnection connection = HttpClient.open(download.url);
                     //Set headers
-                    connection.setConnectTimeout(30000);
                     connection.setRequestMethod("GET");
-                    connection.setRequestProperty("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/79.0.3945.130 Safari/537.36");
                     connection.setRequestProperty("Accept-Language", "*");
-                    connection.setRequestProperty("Accept", "*/*");
                     connection.setRequestProperty("Range", "bytes=" + start + "-");
                     connection.connect();
     
@@ -539,10 +599,9 @@ public class DownloadService extends Service {
                             return;
                         }
                     }
-                    //On done
+                    //On done, closing after EOF returns connection to pool
                     inputStream.close();
                     outputStream.close();
-                    connection.disconnect();
                     //Update
                     download.state = Download.DownloadState.POST;
                     updateProgress();
@@ -607,8 +666,7 @@ public class DownloadService extends Service {
                 File coverFile = new File(outFile.getPath().substring(0, outFile.getPath().lastIndexOf('.')) + ".jpg");
 
                 try {
-                    URL url = new URL("http://e-cdn-images.deezer.com/images/cover/" + trackJson.getString("md5_image") + "/" + Integer.toString(settings.albumArtResolution) + "x" + Integer.toString(settings.albumArtResolution) + "-000000-80-0-0.jpg");
-                    HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                    HttpURLConnection connection = HttpClient.open("http://e-cdn-images.deezer.com/images/cover/" + trackJson.getString("md5_image") + "/" + Integer.toString(settings.albumArtResolution) + "x" + Integer.toString(settings.albumArtResolution) + "-000000-80-0-0.jpg");
                     //Set headers
                     connection.setRequestMethod("GET");
                     connection.connect();
@@ -625,7 +683,6 @@ public class DownloadService extends Service {
                     try {
                         inputStream.close();
                         outputStream.close();
-                        connection.disconnect();
                     } catch (Exception ignored) {
                     }
 
@@ -695,6 +752,7 @@ public class DownloadService extends Service {
                     File oldFile = new File(outFile.getPath());
                     File newFile = new File(outFile.getPath().substring(0, outFile.getPath().lastIndexOf(".")));
                     if (oldFile.exists()) oldFile.renameTo(newFile);
+                    outFile = newFile;
                     
                 }
             }
@@ -718,8 +776,7 @@ public class DownloadService extends Service {
                 //Create to lock
                 coverFile.createNewFile();
 
-                URL url = new URL("http://e-cdn-images.deezer.com/images/cover/" + albumJson.getString("md5_image") + "/" + Integer.toString(settings.albumArtResolution) + "x" + Integer.toString(settings.albumArtResolution) + "-000000-80-0-0.jpg");
-                HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+                HttpURLConnection connection = HttpClient.open("http://e-cdn-images.deezer.com/images/cover/" + albumJson.getString("md5_image") + "/" + Integer.toString(settings.albumArtResolution) + "x" + Integer.toString(settings.albumArtResolution) + "-000000-80-0-0.jpg");
                 //Set headers
                 connection.setRequestMethod("GET");
                 connection.connect();
@@ -736,7 +793,6 @@ public class DownloadService extends Service {
                 try {
                     inputStream.close();
                     outputStream.close();
-                    connection.disconnect();
                 } catch (Exception ignored) {
                 }
                 //Create .nomedia to not spam gallery
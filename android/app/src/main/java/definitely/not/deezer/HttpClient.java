@@ -0,0 +1,184 @@
+package definitely.not.deezer;
+
+import android.util.JsonReader;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.GZIPInputStream;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * Shared connection policy for Deezer API, CDN and image requests: timeouts, default headers,
+ * per host keep-alive pool and one TLS session cache, so new connections resume TLS sessions.
+ * Pooled connections are only reused if the response is read to the end and closed, not disconnected.
+ */
+public class HttpClient {
+    static final int CONNECT_TIMEOUT = 20000;
+    static final int READ_TIMEOUT = 30000;
+    //Idle keep-alive connections kept per process
+    static final int MAX_IDLE_CONNECTIONS = 8;
+    static final long KEEP_ALIVE_DURATION = 5 * 60 * 1000;
+    static final int TLS_SESSION_CACHE_SIZE = 64;
+    //Bigger remainders are cheaper to drop than to download for connection reuse
+    static final long DRAIN_LIMIT = 64 * 1024;
+    //API hosts connected to when a service starts
+    static final String[] DEEZER_URLS = {"https://www.deezer.com/", "https://api.deezer.com/", "https://media.deezer.com/"};
+
+    private static SSLSocketFactory socketFactory;
+
+    static {
+        //Read by the platform connection pool when it's created
+        System.setProperty("http.keepAlive", "true");
+        System.setProperty("http.maxConnections", Integer.toString(MAX_IDLE_CONNECTIONS));
+        System.setProperty("http.keepAliveDuration", Long.toString(KEEP_ALIVE_DURATION));
+    }
+
+    //Same factory for every connection, pooled connections are matched by it
+    private static synchronized SSLSocketFactory socketFactory() {
+        if (socketFactory == null) {
+            try {
+                SSLContext context = SSLContext.getInstance("TLS");
+                context.init(null, null, null);
+                context.getClientSessionContext().setSessionCacheSize(TLS_SESSION_CACHE_SIZE);
+                socketFactory = context.getSocketFactory();
+            } catch (Exception e) {
+                e.printStackTrace();
+                socketFactory = HttpsURLConnection.getDefaultSSLSocketFactory();
+            }
+        }
+        return socketFactory;
+    }
+
+    /**
+     * Create connection with shared policy and default headers, not connected yet.
+     * @param url HTTP or HTTPS URL
+     */
+    static HttpURLConnection open(String url) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        if (connection instanceof HttpsURLConnection)
+            ((HttpsURLConnection) connection).setSSLSocketFactory(socketFactory());
+        connection.setConnectTimeout(CONNECT_TIMEOUT);
+        connection.setReadTimeout(READ_TIMEOUT);
+        connection.setRequestProperty("User-Agent", Deezer.USER_AGENT);
+        connection.setRequestProperty("Accept", "*/*");
+        return connection;
+    }
+
+    //Read rest of a short response and close it, so the connection goes back to the pool
+    static void release(HttpURLConnection connection) {
+        try {
+            InputStream inputStream = (connection.getResponseCode() >= 400) ? connection.getErrorStream() : connection.getInputStream();
+            if (inputStream == null)
+                return;
+            byte[] buffer = new byte[8192];
+            long total = 0;
+            int read;
+            while (total < DRAIN_LIMIT && (read = inputStream.read(buffer)) != -1)
+                total += read;
+            inputStream.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Parse JSON object straight from the response bytes, without building the body as a string.
+     * Request has to set Accept-Encoding itself, otherwise the platform decompresses transparently.
+     * @throws RateLimiter.QuotaException On HTTP 429
+     * @throws IOException On other HTTP errors, with status code
+     */
+    static JSONObject readJson(HttpURLConnection connection) throws IOException, JSONException {
+        int code = connection.getResponseCode();
+        if (code == 429) {
+            long retryAfter = 0;
+            try {
+                retryAfter = Long.parseLong(connection.getHeaderField("Retry-After")) * 1000;
+            } catch (NumberFormatException ignored) {}
+            release(connection);
+            throw new RateLimiter.QuotaException("Too many requests to " + connection.getURL().getHost(), retryAfter);
+        }
+        //Error body is drained, so the connection can be reused
+        if (code >= 400) {
+            release(connection);
+            throw new IOException("HTTP " + code + " from " + connection.getURL().getHost());
+        }
+        InputStream inputStream = connection.getInputStream();
+        if ("gzip".equalsIgnoreCase(connection.getContentEncoding()))
+            inputStream = new GZIPInputStream(inputStream, 8192);
+        try (JsonReader reader = new JsonReader(new InputStreamReader(inputStream, StandardCharsets.UTF_8))) {
+            Object value = readValue(reader);
+            if (!(value instanceof JSONObject))
+                throw new JSONException("Response isn't a JSON object!");
+            //Consume rest (gzip trailer), so connection goes back to pool
+            byte[] buffer = new byte[512];
+            while (inputStream.read(buffer) != -1);
+            return (JSONObject) value;
+        }
+    }
+
+    private static Object readValue(JsonReader reader) throws IOException, JSONException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                JSONObject object = new JSONObject();
+                reader.beginObject();
+                while (reader.hasNext())
+                    object.put(reader.nextName(), readValue(reader));
+                reader.endObject();
+                return object;
+            case BEGIN_ARRAY:
+                JSONArray array = new JSONArray();
+                reader.beginArray();
+                while (reader.hasNext())
+                    array.put(readValue(reader));
+                reader.endArray();
+                return array;
+            case NUMBER:
+                return number(reader.nextString());
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return JSONObject.NULL;
+            default:
+                return reader.nextString();
+        }
+    }
+
+    //Same number types as org.json parser
+    private static Object number(String number) {
+        try {
+            long value = Long.parseLong(number);
+            if (value == (int) value)
+                return (int) value;
+            return value;
+        } catch (NumberFormatException e) {
+            return Double.parseDouble(number);
+        }
+    }
+
+    //Connect to hosts in background, so first requests skip TCP & TLS handshakes
+    static void prewarm(String... urls) {
+        Thread thread = new Thread(() -> {
+            for (String url : urls) {
+                try {
+                    HttpURLConnection connection = open(url);
+                    connection.setRequestMethod("HEAD");
+                    connection.setInstanceFollowRedirects(false);
+                    connection.getResponseCode();
+                    release(connection);
+                } catch (Exception ignored) {}
+            }
+        }, "HttpClient prewarm");
+        thread.setDaemon(true);
+        thread.start();
+    }
+}
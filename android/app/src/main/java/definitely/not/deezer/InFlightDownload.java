@@ -0,0 +1,111 @@
+package definitely.not.deezer;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Marker of a track DownloadService is currently downloading (decrypted) into a temporary file.
+ * DownloadService runs in another process, so the marker is a small file in the shared cache dir,
+ * StreamServer uses it to play the partial file instead of fetching the track from CDN again.
+ * Marker is removed once the download stops, successful or not. Its modification time is refreshed
+ * while data is coming in, so markers left behind by a killed DownloadService process expire.
+ */
+public class InFlightDownload {
+    static final String DIR = "downloading";
+    //Writer refreshes marker this often, readers treat older markers as dead
+    static final long HEARTBEAT_INTERVAL = 2000;
+    static final long HEARTBEAT_TIMEOUT = 10000;
+
+    final File file;
+    //Track ID & quality of the file after fallback
+    final String streamTrackId;
+    final int quality;
+    final long size;
+    private final File marker;
+
+    private InFlightDownload(File marker, File file, String streamTrackId, int quality, long size) {
+        this.marker = marker;
+        this.file = file;
+        this.streamTrackId = streamTrackId;
+        this.quality = quality;
+        this.size = size;
+    }
+
+    private static File marker(File cacheDir, String trackId) {
+        return new File(new File(cacheDir, DIR), trackId);
+    }
+
+    /**
+     * Announce download, written atomically so readers never see partial marker.
+     * @param file Temporary file with plain data from offset 0
+     * @param streamTrackId Track ID after fallback
+     * @param quality Quality after fallback
+     * @param size Final size of file
+     * @return Marker file to delete when download stops
+     */
+    static File publish(File cacheDir, String trackId, File file, String streamTrackId, int quality, long size) throws IOException {
+        File marker = marker(cacheDir, trackId);
+        File dir = marker.getParentFile();
+        if (!dir.exists() && !dir.mkdirs())
+            throw new IOException("Failed creating " + dir);
+        File tmp = new File(marker.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmp)) {
+            out.write((file.getPath() + "\n" + streamTrackId + "\n" + quality + "\n" + size + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        if (!tmp.renameTo(marker))
+            throw new IOException("Failed replacing " + marker);
+        return marker;
+    }
+
+    //Download still writing, called by DownloadService every HEARTBEAT_INTERVAL
+    static void heartbeat(File marker) {
+        marker.setLastModified(System.currentTimeMillis());
+    }
+
+    //Remove markers of a previous DownloadService process
+    static void clear(File cacheDir) {
+        File[] markers = new File(cacheDir, DIR).listFiles();
+        if (markers == null)
+            return;
+        for (File marker : markers)
+            marker.delete();
+    }
+
+    private static boolean isAlive(File marker) {
+        return System.currentTimeMillis() - marker.lastModified() <= HEARTBEAT_TIMEOUT;
+    }
+
+    //Download of track in progress, null if none
+    static InFlightDownload find(File cacheDir, String trackId) {
+        File marker = marker(cacheDir, trackId);
+        if (!marker.exists())
+            return null;
+        //Writer died without removing it
+        if (!isAlive(marker)) {
+            marker.delete();
+            return null;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(marker), StandardCharsets.UTF_8))) {
+            File file = new File(reader.readLine());
+            String streamTrackId = reader.readLine();
+            int quality = Integer.parseInt(reader.readLine());
+            long size = Long.parseLong(reader.readLine());
+            if (!file.exists())
+                return null;
+            return new InFlightDownload(marker, file, streamTrackId, quality, size);
+        } catch (Exception e) {
+            //Removed meanwhile
+            return null;
+        }
+    }
+
+    //Still being written by DownloadService
+    boolean isActive() {
+        return marker.exists() && isAlive(marker);
+    }
+}
@@ -25,6 +25,7 @@ import androidx.annotation.Nullable;
 
 import com.ryanheise.audioservice.AudioServiceActivity;
 
+import java.io.File;
 import java.lang.ref.WeakReference;
 // import java.security.KeyManagementException; // Relatif à SSL, pas ACR
 // import java.security.NoSuchAlgorithmException; // Relatif à SSL, pas ACR
@@ -39,12 +40,14 @@ import java.util.HashMap;
 
 import io.flutter.embedding.engine.FlutterEngine;
 import io.flutter.plugin.common.EventChannel;
+import io.flutter.plugin.common.MethodCall;
 import io.flutter.plugin.common.MethodChannel;
 
 public class MainActivity extends AudioServiceActivity {
     private static final String NATIVE_CHANNEL = "definitely.not.deezer/native"; // Renommé pour clarté
     private static final String EVENT_CHANNEL = "definitely.not.deezer/events"; // Renommé pour inclure tous les events
     private static final String TAG = "MainActivity"; // Ajout d'un TAG pour les logs
+    private static final int DEFAULT_STREAM_CACHE_MB = 256; // Cache des morceaux streamés
     EventChannel.EventSink eventSink;
 
     // --- Download Service ---
@@ -190,18 +193,54 @@ public class MainActivity extends AudioServiceActivity {
             if (call.method.equals("startServer")) {
                  if (streamServer == null) {
                     String offlinePath = getExternalFilesDir("offline").getAbsolutePath();
-                    streamServer = new StreamServer(call.argument("arl"), offlinePath);
-                    streamServer.start();
+                    streamServer = new StreamServer(getApplicationContext(), call.argument("arl"), offlinePath, new File(getCacheDir(), StreamCache.DIR), streamCacheSize(call));
+                    streamServer.start(call.argument("streamEngine"));
+                 } else if (call.hasArgument("streamCacheSize")) {
+                    streamServer.setCacheSize(streamCacheSize(call));
                  }
+                 if (call.hasArgument("readAheadSeconds"))
+                    streamServer.setReadAhead(call.argument("readAheadSeconds"));
                  result.success(null);
                  return;
              }
+            if (call.method.equals("prefetch")) {
+                 Integer quality = call.argument("q");
+                 if (quality == null) {
+                    result.error("INVALID_ARGS", "Missing quality", null);
+                    return;
+                 }
+                 if (streamServer != null) {
+                    Integer seconds = call.argument("seconds");
+                    streamServer.prefetch(
+                            quality,
+                            call.argument("streamTrackId"),
+                            call.argument("trackToken"),
+                            call.argument("md5origin"),
+                            call.argument("mv"),
+                            ((seconds == null) ? StreamServer.PREFETCH_SECONDS : seconds) * StreamServer.bytesPerSecond(quality)
+                    );
+                 }
+                 result.success(null);
+                 return;
+            }
+            if (call.method.equals("getStreamSessionStats")) {
+                 result.success((streamServer == null) ? null : streamServer.sessions.toJSON());
+                 return;
+            }
+            if (call.method.equals("getStreamMetrics")) {
+                 result.success((streamServer == null) ? null : streamServer.metrics.toJSON());
+                 return;
+            }
+            if (call.method.equals("getPrefetchStats")) {
+                 result.success((streamServer == null) ? null : streamServer.history.toJSON());
+                 return;
+            }
             if (call.method.equals("getStreamInfo")) {
                  if (streamServer == null) {
                     result.success(null);
                     return;
                  }
-                 StreamServer.StreamInfo info = streamServer.streams.get(call.argument("id").toString());
+                 StreamServer.StreamInfo info = streamServer.getStreamInfo(call.argument("id").toString());
                  if (info != null)
                     result.success(info.toJSON());
                  else
@@ -280,6 +319,12 @@ public class MainActivity extends AudioServiceActivity {
         }));
     }
 
+    // Budget du cache de streaming en octets, argument en Mo
+    private static long streamCacheSize(MethodCall call) {
+        Integer megabytes = call.argument("streamCacheSize");
+        return ((megabytes == null) ? DEFAULT_STREAM_CACHE_MB : megabytes) * 1024L * 1024L;
+    }
+
     // Connexion au DownloadService
     private void connectDownloadService() {
         if (downloadServiceBound) {
@@ -472,6 +517,13 @@ public class MainActivity extends AudioServiceActivity {
                 Log.w(TAG, "IncomingHandler: Activity is null, ignoring message: " + msg.what);
                 return;
             }
+            //Pas destiné à Flutter
+            if (msg.what == DownloadService.SERVICE_ON_OFFLINE_UPDATE) {
+                String path = msg.getData().getString("path");
+                if (activity.streamServer != null && path != null)
+                    activity.streamServer.offlineCatalog.update(new File(path));
+                return;
+            }
             if (activity.eventSink == null) {
                  // Peut arriver si un message arrive avant que Flutter ne soit prêt à écouter
                  Log.w(TAG, "IncomingHandler: EventSink is null, cannot forward message: " + msg.what);
@@ -0,0 +1,54 @@
+package definitely.not.deezer;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Map;
+
+import fi.iki.elonen.NanoHTTPD;
+
+/**
+ * NanoHTTPD based engine, thread per connection and responses copied through streams.
+ */
+public class NanoStreamEngine extends NanoHTTPD implements StreamEngine {
+    private final Handler handler;
+
+    public NanoStreamEngine(String hostname, int port, Handler handler) {
+        super(hostname, port);
+        this.handler = handler;
+    }
+
+    @Override
+    public Response serve(IHTTPSession session) {
+        StreamResponse response;
+        try {
+            StreamRequest request = new StreamRequest(session.getMethod().name(), session.getUri(), session.getParameters(), session.getHeaders());
+            response = handler.handle(request);
+        } catch (Exception e) {
+            e.printStackTrace();
+            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "An error occurred while serving the request.");
+        }
+
+        InputStream body;
+        try {
+            if (response.file != null) {
+                response.file.position(response.position);
+                body = Channels.newInputStream(response.file);
+            } else {
+                body = Channels.newInputStream(response.body);
+            }
+        } catch (IOException e) {
+            response.close();
+            e.printStackTrace();
+            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Failed getting data!");
+        }
+
+        Response.IStatus status = Response.Status.lookup(response.status);
+        if (status == null)
+            status = Response.Status.INTERNAL_ERROR;
+        Response out = newFixedLengthResponse(status, response.mime, body, response.length);
+        for (Map.Entry<String, String> header : response.headers.entrySet())
+            out.addHeader(header.getKey(), header.getValue());
+        return out;
+    }
+}
@@ -0,0 +1,258 @@
+package definitely.not.deezer;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Minimal HTTP/1.1 engine on blocking NIO channels with keep-alive.
+ * File bodies are sent with FileChannel.transferTo (sendfile), channel bodies through a pooled direct buffer,
+ * so there are no per-request heap buffers. Only GET requests without body are supported.
+ */
+public class NioStreamEngine implements StreamEngine {
+    static final int MAX_HEADER_SIZE = 8192;
+
+    private final String hostname;
+    private final int port;
+    private final Handler handler;
+    private ServerSocketChannel serverChannel;
+    private ExecutorService workers;
+    private final Set<SocketChannel> clients = Collections.synchronizedSet(new HashSet<>());
+
+    public NioStreamEngine(String hostname, int port, Handler handler) {
+        this.hostname = hostname;
+        this.port = port;
+        this.handler = handler;
+    }
+
+    @Override
+    public void start() throws IOException {
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.socket().setReuseAddress(true);
+        serverChannel.socket().bind(new InetSocketAddress(hostname, port));
+        workers = Executors.newCachedThreadPool(runnable -> {
+            Thread thread = new Thread(runnable, "NioStreamEngine");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        Thread acceptThread = new Thread(() -> {
+            while (serverChannel.isOpen()) {
+                try {
+                    SocketChannel client = serverChannel.accept();
+                    clients.add(client);
+                    workers.execute(() -> serveClient(client));
+                } catch (Exception e) {
+                    //Closed by stop()
+                    if (!serverChannel.isOpen())
+                        break;
+                    e.printStackTrace();
+                }
+            }
+        }, "NioStreamEngine-accept");
+        acceptThread.setDaemon(true);
+        acceptThread.start();
+    }
+
+    @Override
+    public void stop() {
+        try {
+            if (serverChannel != null)
+                serverChannel.close();
+        } catch (IOException ignored) {}
+        //Unblock workers
+        synchronized (clients) {
+            for (SocketChannel client : clients) {
+                try {
+                    client.close();
+                } catch (IOException ignored) {}
+            }
+            clients.clear();
+        }
+        if (workers != null)
+            workers.shutdownNow();
+    }
+
+    //Handle requests on connection until closed
+    private void serveClient(SocketChannel client) {
+        ByteBuffer input = ByteBuffer.allocate(MAX_HEADER_SIZE);
+        try {
+            client.socket().setTcpNoDelay(true);
+            while (true) {
+                StreamRequest request = readRequest(client, input);
+                if (request == null)
+                    break;
+
+                StreamResponse response;
+                try {
+                    response = handler.handle(request);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                    response = StreamResponse.text(500, "An error occurred while serving the request.");
+                }
+
+                boolean keepAlive = !"close".equalsIgnoreCase(request.headers.get("connection"));
+                if (!send(client, response, keepAlive) || !keepAlive)
+                    break;
+            }
+        } catch (IOException ignored) {
+            //Client disconnected
+        } finally {
+            clients.remove(client);
+            try {
+                client.close();
+            } catch (IOException ignored) {}
+        }
+    }
+
+    /**
+     * Read and parse request header, leftover bytes stay in buffer.
+     * @return Request or null on EOF
+     */
+    private StreamRequest readRequest(SocketChannel client, ByteBuffer input) throws IOException {
+        int headerEnd;
+        while ((headerEnd = findHeaderEnd(input)) == -1) {
+            if (!input.hasRemaining())
+                throw new IOException("Request header too large!");
+            if (client.read(input) == -1)
+                return null;
+        }
+
+        String header = new String(input.array(), 0, headerEnd, StandardCharsets.ISO_8859_1);
+        //Keep pipelined data
+        int consumed = headerEnd + 4;
+        System.arraycopy(input.array(), consumed, input.array(), 0, input.position() - consumed);
+        input.position(input.position() - consumed);
+
+        String[] lines = header.split("\r\n");
+        String[] requestLine = lines[0].split(" ");
+        if (requestLine.length < 2)
+            throw new IOException("Invalid request line: " + lines[0]);
+
+        Map<String, String> headers = new HashMap<>();
+        for (int i = 1; i < lines.length; i++) {
+            int colon = lines[i].indexOf(':');
+            if (colon > 0)
+                headers.put(lines[i].substring(0, colon).trim().toLowerCase(), lines[i].substring(colon + 1).trim());
+        }
+        //HTTP/1.0 closes by default
+        if (requestLine.length > 2 && requestLine[2].equals("HTTP/1.0") && !headers.containsKey("connection"))
+            headers.put("connection", "close");
+
+        String target = requestLine[1];
+        int query = target.indexOf('?');
+        String uri = decode((query == -1) ? target : target.substring(0, query));
+        Map<String, List<String>> parameters = (query == -1) ? new HashMap<>() : decodeParameters(target.substring(query + 1));
+        return new StreamRequest(requestLine[0], uri, parameters, headers);
+    }
+
+    //Index of \r\n\r\n in read data, -1 if not yet received
+    private static int findHeaderEnd(ByteBuffer input) {
+        byte[] data = input.array();
+        for (int i = 0; i + 3 < input.position(); i++) {
+            if (data[i] == '\r' && data[i + 1] == '\n' && data[i + 2] == '\r' && data[i + 3] == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    private static Map<String, List<String>> decodeParameters(String query) throws UnsupportedEncodingException {
+        Map<String, List<String>> parameters = new HashMap<>();
+        for (String pair : query.split("&")) {
+            if (pair.isEmpty()) continue;
+            int equals = pair.indexOf('=');
+            String key = decode((equals == -1) ? pair : pair.substring(0, equals));
+            String value = (equals == -1) ? "" : decode(pair.substring(equals + 1));
+            List<String> values = parameters.get(key);
+            if (values == null) {
+                values = new ArrayList<>();
+                parameters.put(key, values);
+            }
+            values.add(value);
+        }
+        return parameters;
+    }
+
+    private static String decode(String value) throws UnsupportedEncodingException {
+        return URLDecoder.decode(value, "UTF-8");
+    }
+
+    /**
+     * Write response and close its body.
+     * @return false if the body ended early and the connection can't be reused
+     */
+    private boolean send(SocketChannel client, StreamResponse response, boolean keepAlive) throws IOException {
+        try {
+            StringBuilder header = new StringBuilder();
+            header.append("HTTP/1.1 ").append(response.status).append(' ').append(StreamResponse.statusText(response.status)).append("\r\n");
+            header.append("Content-Type: ").append(response.mime).append("\r\n");
+            header.append("Content-Length: ").append(response.length).append("\r\n");
+            header.append("Connection: ").append(keepAlive ? "keep-alive" : "close").append("\r\n");
+            for (Map.Entry<String, String> entry : response.headers.entrySet())
+                header.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+            header.append("\r\n");
+            ByteBuffer headerBuffer = ByteBuffer.wrap(header.toString().getBytes(StandardCharsets.ISO_8859_1));
+            while (headerBuffer.hasRemaining())
+                client.write(headerBuffer);
+
+            if (response.file != null)
+                return sendFile(client, response);
+            return sendChannel(client, response);
+        } finally {
+            response.close();
+        }
+    }
+
+    //Zero copy from page cache to socket
+    private boolean sendFile(SocketChannel client, StreamResponse response) throws IOException {
+        long position = response.position;
+        long end = response.position + response.length;
+        while (position < end) {
+            long sent = response.file.transferTo(position, end - position, client);
+            if (sent <= 0) {
+                //File shorter than announced
+                if (position >= response.file.size())
+                    return false;
+                continue;
+            }
+            position += sent;
+        }
+        return true;
+    }
+
+    private boolean sendChannel(SocketChannel client, StreamResponse response) throws IOException {
+        ByteBuffer buffer = BufferPool.acquire();
+        try {
+            long remaining = response.length;
+            while (remaining > 0) {
+                buffer.clear();
+                if (buffer.remaining() > remaining)
+                    buffer.limit((int) remaining);
+                int read = response.body.read(buffer);
+                if (read == -1)
+                    return false;
+                buffer.flip();
+                remaining -= buffer.remaining();
+                while (buffer.hasRemaining())
+                    client.write(buffer);
+            }
+            return true;
+        } finally {
+            BufferPool.release(buffer);
+        }
+    }
+}
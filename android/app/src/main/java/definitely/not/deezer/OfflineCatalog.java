@@ -0,0 +1,92 @@
+package definitely.not.deezer;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+
+/**
+ * Format and size of offline tracks by track ID, so range requests don't probe the file every time.
+ * Tracks are added on their first request, and updated when DownloadService finishes a private download.
+ */
+public class OfflineCatalog {
+
+    static class Track {
+        final File file;
+        final boolean flac;
+        final long size;
+        final long modified;
+
+        Track(File file, boolean flac, long size, long modified) {
+            this.file = file;
+            this.flac = flac;
+            this.size = size;
+            this.modified = modified;
+        }
+    }
+
+    private final String directory;
+    private final HashMap<String, Track> tracks = new HashMap<>();
+
+    OfflineCatalog(String directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Get offline track, probed on first use.
+     * @throws IOException If the file is missing or unreadable
+     */
+    Track get(String trackId) throws IOException {
+        synchronized (this) {
+            Track track = tracks.get(trackId);
+            if (track != null)
+                return track;
+        }
+        return refresh(trackId);
+    }
+
+    //Probe file again, for example when it changed without notification
+    Track refresh(String trackId) throws IOException {
+        Track track;
+        try {
+            track = probe(new File(directory, trackId));
+        } catch (IOException e) {
+            remove(trackId);
+            throw e;
+        }
+        synchronized (this) {
+            tracks.put(trackId, track);
+        }
+        return track;
+    }
+
+    synchronized void remove(String trackId) {
+        tracks.remove(trackId);
+    }
+
+    //File in offline directory was written or removed
+    void update(File file) {
+        String trackId = file.getName();
+        if (!new File(directory, trackId).getAbsolutePath().equals(file.getAbsolutePath()))
+            return;
+        synchronized (this) {
+            Track track = tracks.get(trackId);
+            if (track != null && track.modified == file.lastModified() && track.size == file.length())
+                return;
+        }
+        try {
+            refresh(trackId);
+        } catch (IOException ignored) {}
+    }
+
+    private static Track probe(File file) throws IOException {
+        //Read header
+        byte[] buffer = new byte[4];
+        try (InputStream inputStream = new FileInputStream(file)) {
+            if (inputStream.read(buffer, 0, 4) != 4)
+                throw new IOException("Offline file " + file.getName() + " too short!");
+        }
+        return new Track(file, new String(buffer).equals("fLaC"), file.length(), file.lastModified());
+    }
+}
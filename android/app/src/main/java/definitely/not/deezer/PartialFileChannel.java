@@ -0,0 +1,96 @@
+package definitely.not.deezer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Channel reading a file another process is still appending to.
+ * Received bytes are returned right away, reads past the written end wait for the writer.
+ * Fails if the download stops or stalls before the requested range is complete, so the player retries via CDN.
+ * Post processing only rewrites tags in place or replaces the file, audio data of the open file doesn't move.
+ */
+public class PartialFileChannel implements ReadableByteChannel {
+    //Writer progress is polled, it's in another process
+    static final long POLL_INTERVAL = 50;
+    //Give up if file doesn't grow for this long
+    static final long STALL_TIMEOUT = 10000;
+
+    private final FileChannel file;
+    private final InFlightDownload download;
+    private final long limit;
+    private long position;
+
+    /**
+     * @param file Opened partial file, closed on close
+     * @param download Marker of the writer
+     * @param position File offset to start from
+     * @param limit File offset to end at (exclusive)
+     */
+    public PartialFileChannel(FileChannel file, InFlightDownload download, long position, long limit) {
+        this.file = file;
+        this.download = download;
+        this.position = position;
+        this.limit = Math.min(limit, download.size);
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!file.isOpen())
+            throw new ClosedChannelException();
+        if (position >= limit)
+            return -1;
+
+        long available = awaitData();
+        int output = (int) Math.min(dst.remaining(), Math.min(available, limit) - position);
+        ByteBuffer slice = dst.duplicate();
+        slice.limit(slice.position() + output);
+        int read = file.read(slice, position);
+        if (read <= 0)
+            throw new IOException("Partial download shrunk at " + position);
+        dst.position(dst.position() + read);
+        position += read;
+        return read;
+    }
+
+    //Wait until the byte at position is written, returns written length
+    private long awaitData() throws IOException {
+        long available = file.size();
+        long lastGrowth = System.currentTimeMillis();
+        while (position >= available) {
+            if (!download.isActive()) {
+                //Might have finished between the checks
+                available = file.size();
+                if (position < available)
+                    break;
+                throw new IOException("Download of " + download.file.getName() + " stopped at " + available);
+            }
+            if (System.currentTimeMillis() - lastGrowth > STALL_TIMEOUT)
+                throw new IOException("Download of " + download.file.getName() + " stalled at " + available);
+            try {
+                Thread.sleep(POLL_INTERVAL);
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            long size = file.size();
+            if (size > available) {
+                available = size;
+                lastGrowth = System.currentTimeMillis();
+            }
+        }
+        return available;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return file.isOpen();
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+}
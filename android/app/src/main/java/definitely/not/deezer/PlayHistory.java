@@ -0,0 +1,248 @@
+package definitely.not.deezer;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Persistent history of (previous track -> next track) transitions of streamed tracks,
+ * used to predict and prefetch the next track. Also keeps stream parameters of tracks, so they can be prefetched.
+ */
+public class PlayHistory {
+    static final int MAX_TRACKS = 2000;
+    //Max remembered next tracks per track
+    static final int MAX_NEXT = 8;
+    //Min share of transitions from track to be predicted
+    static final double MIN_SHARE = 0.3;
+    static final int MAX_PREDICTIONS = 2;
+    static final int SAVE_INTERVAL = 5;
+    //Track tokens expire, older params can't be resolved anymore
+    static final long PARAMS_TTL = 60 * 60 * 1000;
+
+    //Parameters needed to resolve track URL
+    static class TrackParams {
+        final String trackToken;
+        final String md5origin;
+        final String mediaVersion;
+        //When track token was received
+        final long time;
+
+        TrackParams(String trackToken, String md5origin, String mediaVersion, long time) {
+            this.trackToken = trackToken;
+            this.md5origin = md5origin;
+            this.mediaVersion = mediaVersion;
+            this.time = time;
+        }
+
+        boolean isExpired() {
+            return System.currentTimeMillis() - time > PARAMS_TTL;
+        }
+    }
+
+    private final File file;
+    private final LinkedHashMap<String, HashMap<String, Integer>> transitions = new LinkedHashMap<String, HashMap<String, Integer>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, HashMap<String, Integer>> eldest) {
+            return size() > MAX_TRACKS;
+        }
+    };
+    private final LinkedHashMap<String, TrackParams> params = new LinkedHashMap<String, TrackParams>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, TrackParams> eldest) {
+            return size() > MAX_TRACKS;
+        }
+    };
+    private String lastTrack;
+    private int unsaved = 0;
+    private boolean loaded = false;
+
+    //Prediction metrics
+    private final HashSet<String> predicted = new HashSet<>();
+    private long hits = 0;
+    private long misses = 0;
+    private long prefetches = 0;
+    private long prefetchedBytes = 0;
+    private long skipped = 0;
+
+    PlayHistory(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Track started streaming, records transition from previous one.
+     * @return Predicted next tracks, most likely first
+     */
+    synchronized List<String> played(String trackId, TrackParams trackParams) {
+        load();
+        params.put(trackId, trackParams);
+        if (trackId.equals(lastTrack))
+            return Collections.emptyList();
+
+        //Check previous prediction
+        if (!predicted.isEmpty()) {
+            if (predicted.contains(trackId))
+                hits++;
+            else
+                misses++;
+            predicted.clear();
+        }
+
+        if (lastTrack != null) {
+            HashMap<String, Integer> next = transitions.get(lastTrack);
+            if (next == null) {
+                next = new HashMap<>();
+                transitions.put(lastTrack, next);
+            }
+            Integer count = next.get(trackId);
+            next.put(trackId, (count == null) ? 1 : count + 1);
+            //Forget least frequent
+            if (next.size() > MAX_NEXT) {
+                String least = null;
+                for (Map.Entry<String, Integer> entry : next.entrySet()) {
+                    if (!entry.getKey().equals(trackId) && (least == null || entry.getValue() < next.get(least)))
+                        least = entry.getKey();
+                }
+                next.remove(least);
+            }
+            unsaved++;
+        }
+        lastTrack = trackId;
+        if (unsaved >= SAVE_INTERVAL)
+            save();
+
+        return predict(trackId);
+    }
+
+    private List<String> predict(String trackId) {
+        List<String> out = new ArrayList<>();
+        HashMap<String, Integer> next = transitions.get(trackId);
+        if (next == null)
+            return out;
+        int total = 0;
+        for (int count : next.values())
+            total += count;
+        List<Map.Entry<String, Integer>> sorted = new ArrayList<>(next.entrySet());
+        Collections.sort(sorted, (a, b) -> b.getValue() - a.getValue());
+        for (Map.Entry<String, Integer> entry : sorted) {
+            if (out.size() >= MAX_PREDICTIONS || entry.getValue() < total * MIN_SHARE)
+                break;
+            if (getParams(entry.getKey()) != null)
+                out.add(entry.getKey());
+        }
+        return out;
+    }
+
+    //Last played track, predictions of older ones are stale
+    synchronized String lastTrack() {
+        return lastTrack;
+    }
+
+    //Params with valid track token, null if unknown or expired
+    synchronized TrackParams getParams(String trackId) {
+        TrackParams track = params.get(trackId);
+        if (track == null || track.isExpired())
+            return null;
+        return track;
+    }
+
+    //Prefetch of predicted track finished
+    synchronized void prefetched(String trackId, long bytes) {
+        predicted.add(trackId);
+        prefetches++;
+        prefetchedBytes += bytes;
+    }
+
+    //Prediction not prefetched (metered network, budget, failed)
+    synchronized void skipped() {
+        skipped++;
+    }
+
+    //For passing into UI
+    synchronized HashMap<String, Object> toJSON() {
+        HashMap<String, Object> out = new HashMap<>();
+        out.put("hits", hits);
+        out.put("misses", misses);
+        out.put("prefetches", prefetches);
+        out.put("prefetchedBytes", prefetchedBytes);
+        out.put("skipped", skipped);
+        out.put("tracks", transitions.size());
+        return out;
+    }
+
+    private void load() {
+        if (loaded) return;
+        loaded = true;
+        if (!file.exists()) return;
+        try {
+            byte[] data = new byte[(int) file.length()];
+            try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+                in.readFully(data);
+            }
+            JSONObject json = new JSONObject(new String(data, StandardCharsets.UTF_8));
+            JSONObject jsonTransitions = json.getJSONObject("transitions");
+            Iterator<String> from = jsonTransitions.keys();
+            while (from.hasNext()) {
+                String fromTrack = from.next();
+                JSONObject jsonNext = jsonTransitions.getJSONObject(fromTrack);
+                HashMap<String, Integer> next = new HashMap<>();
+                Iterator<String> to = jsonNext.keys();
+                while (to.hasNext()) {
+                    String toTrack = to.next();
+                    next.put(toTrack, jsonNext.getInt(toTrack));
+                }
+                transitions.put(fromTrack, next);
+            }
+            JSONArray jsonParams = json.getJSONArray("params");
+            for (int i = 0; i < jsonParams.length(); i++) {
+                JSONArray track = jsonParams.getJSONArray(i);
+                TrackParams trackParams = new TrackParams(track.getString(1), track.getString(2), track.getString(3), track.optLong(4, 0));
+                if (!trackParams.isExpired())
+                    params.put(track.getString(0), trackParams);
+            }
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+
+    //Write compact JSON, replaced atomically
+    synchronized void save() {
+        if (!loaded) return;
+        try {
+            JSONObject jsonTransitions = new JSONObject();
+            for (Map.Entry<String, HashMap<String, Integer>> entry : transitions.entrySet())
+                jsonTransitions.put(entry.getKey(), new JSONObject(entry.getValue()));
+            JSONArray jsonParams = new JSONArray();
+            for (Map.Entry<String, TrackParams> entry : params.entrySet()) {
+                TrackParams track = entry.getValue();
+                jsonParams.put(new JSONArray().put(entry.getKey()).put(track.trackToken).put(track.md5origin).put(track.mediaVersion).put(track.time));
+            }
+            JSONObject json = new JSONObject();
+            json.put("transitions", jsonTransitions);
+            json.put("params", jsonParams);
+
+            File tmp = new File(file.getPath() + ".tmp");
+            try (FileOutputStream out = new FileOutputStream(tmp)) {
+                out.write(json.toString().getBytes(StandardCharsets.UTF_8));
+            }
+            if (!tmp.renameTo(file))
+                throw new IOException("Failed to replace " + file);
+            unsaved = 0;
+        } catch (Exception e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package definitely.not.deezer;
+
+import java.io.IOException;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Token bucket shared by all requests to one API in this process.
+ * Callers wait for tokens in arrival order, a quota error pauses the bucket with exponential backoff.
+ */
+public class RateLimiter {
+    static final long MIN_BACKOFF = 1000;
+    static final long MAX_BACKOFF = 60 * 1000;
+
+    //Server refused request because of quota (HTTP 429)
+    public static class QuotaException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        //Milliseconds requested by server, 0 if unknown
+        final long retryAfter;
+
+        QuotaException(String message, long retryAfter) {
+            super(message);
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    final String name;
+    //Tokens per millisecond
+    private final double rate;
+    private final double capacity;
+    //Fair, so waiting callers get tokens in order
+    private final ReentrantLock queue = new ReentrantLock(true);
+    private double tokens;
+    private long updated;
+    private long pausedUntil = 0;
+    private long backoff = 0;
+
+    /**
+     * @param requests Allowed requests per period, also the burst size
+     * @param period Period in milliseconds
+     */
+    RateLimiter(String name, int requests, long period) {
+        this.name = name;
+        this.rate = (double) requests / period;
+        this.capacity = requests;
+        this.tokens = requests;
+        this.updated = now();
+    }
+
+    //Block until request may be sent
+    void acquire() throws InterruptedException {
+        queue.lockInterruptibly();
+        try {
+            long wait;
+            while ((wait = reserve()) > 0)
+                Thread.sleep(wait);
+        } finally {
+            queue.unlock();
+        }
+    }
+
+    //Take token or get milliseconds to wait for one
+    private synchronized long reserve() {
+        long now = now();
+        tokens = Math.min(capacity, tokens + (now - updated) * rate);
+        updated = now;
+        if (now < pausedUntil)
+            return pausedUntil - now;
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) Math.ceil((1 - tokens) / rate));
+    }
+
+    /**
+     * Quota exceeded, pause all callers.
+     * @param retryAfter Pause requested by server in milliseconds, 0 for exponential backoff
+     * @return Pause in milliseconds
+     */
+    synchronized long backoff(long retryAfter) {
+        backoff = (backoff == 0) ? MIN_BACKOFF : Math.min(backoff * 2, MAX_BACKOFF);
+        long pause = Math.max(backoff, retryAfter);
+        pausedUntil = Math.max(pausedUntil, now() + pause);
+        tokens = 0;
+        return pause;
+    }
+
+    //Request went through, reset backoff
+    synchronized void success() {
+        backoff = 0;
+    }
+
+    private static long now() {
+        return System.nanoTime() / 1000000;
+    }
+}
@@ -0,0 +1,184 @@
+package definitely.not.deezer;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+/**
+ * Reads source ahead of the client on a producer thread into a bounded ring buffer,
+ * so download speed isn't limited by how fast the player reads and short CDN stalls are hidden.
+ * Producer waits while the buffer is full. Source is read and closed only by the producer.
+ * Rings are pooled, so seeking doesn't allocate a new one per request.
+ */
+public class ReadAheadChannel implements ReadableByteChannel {
+    //Idle rings kept, more are left to GC
+    static final int MAX_POOLED_RINGS = 4;
+    private static final ArrayList<byte[]> rings = new ArrayList<>();
+
+    private final ReadableByteChannel source;
+    private byte[] ring;
+    //Used part of ring, pooled ring can be bigger
+    private final int size;
+    //Total bytes written by producer / read by client, position in ring is modulo size
+    private long written = 0;
+    private long read = 0;
+    private boolean eof = false;
+    private IOException error;
+    private boolean closed = false;
+    private boolean producing = true;
+
+    /**
+     * @param source Channel to read ahead, closed when done
+     * @param size Ring buffer size in bytes
+     * @param executor Runs producer
+     * @throws java.util.concurrent.RejectedExecutionException If executor is full, source isn't closed then
+     */
+    public ReadAheadChannel(ReadableByteChannel source, int size, Executor executor) {
+        this.source = source;
+        this.size = size;
+        this.ring = acquireRing(size);
+        try {
+            executor.execute(this::produce);
+        } catch (RuntimeException e) {
+            releaseRing(ring);
+            ring = null;
+            throw e;
+        }
+    }
+
+    //Smallest pooled ring which is big enough
+    private static byte[] acquireRing(int size) {
+        synchronized (rings) {
+            int best = -1;
+            for (int i = 0; i < rings.size(); i++) {
+                int length = rings.get(i).length;
+                if (length >= size && (best == -1 || length < rings.get(best).length))
+                    best = i;
+            }
+            if (best != -1)
+                return rings.remove(best);
+        }
+        return new byte[size];
+    }
+
+    //Keep biggest rings
+    private static void releaseRing(byte[] ring) {
+        synchronized (rings) {
+            rings.add(ring);
+            if (rings.size() > MAX_POOLED_RINGS) {
+                int smallest = 0;
+                for (int i = 1; i < rings.size(); i++) {
+                    if (rings.get(i).length < rings.get(smallest).length)
+                        smallest = i;
+                }
+                rings.remove(smallest);
+            }
+        }
+    }
+
+    //Ring goes back to pool once both client and producer are done with it
+    private void recycle() {
+        if (closed && !producing && ring != null) {
+            releaseRing(ring);
+            ring = null;
+        }
+    }
+
+    private void produce() {
+        ByteBuffer buffer = BufferPool.acquire();
+        try {
+            while (true) {
+                buffer.clear();
+                int count = source.read(buffer);
+                if (count == -1)
+                    break;
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    if (!put(buffer))
+                        return;
+                }
+            }
+        } catch (IOException e) {
+            synchronized (this) {
+                error = e;
+            }
+        } finally {
+            synchronized (this) {
+                eof = true;
+                producing = false;
+                recycle();
+                notifyAll();
+            }
+            BufferPool.release(buffer);
+            try {
+                source.close();
+            } catch (Exception ignored) {}
+        }
+    }
+
+    //Copy into ring once there is space, false if closed
+    private synchronized boolean put(ByteBuffer buffer) {
+        while (!closed && written - read == size) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return false;
+            }
+        }
+        if (closed)
+            return false;
+        int offset = (int) (written % size);
+        int count = (int) Math.min(buffer.remaining(), Math.min(size - (written - read), size - offset));
+        buffer.get(ring, offset, count);
+        written += count;
+        notifyAll();
+        return true;
+    }
+
+    //Bytes currently buffered
+    public synchronized long buffered() {
+        return written - read;
+    }
+
+    @Override
+    public synchronized int read(ByteBuffer dst) throws IOException {
+        if (closed)
+            throw new ClosedChannelException();
+        while (written == read && !eof) {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+        //Buffered data first, then error
+        if (written == read) {
+            if (error != null)
+                throw error;
+            return -1;
+        }
+        int offset = (int) (read % size);
+        int count = (int) Math.min(dst.remaining(), Math.min(written - read, size - offset));
+        dst.put(ring, offset, count);
+        read += count;
+        notifyAll();
+        return count;
+    }
+
+    @Override
+    public synchronized boolean isOpen() {
+        return !closed;
+    }
+
+    //Producer stops and closes source after its current read
+    @Override
+    public synchronized void close() {
+        closed = true;
+        recycle();
+        notifyAll();
+    }
+}
@@ -0,0 +1,68 @@
+package definitely.not.deezer;
+
+import java.util.HashMap;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * Runs only one call per key at a time, concurrent callers with the same key wait for it and share its result.
+ */
+public class SingleFlight<V> {
+
+    public interface Call<V> {
+        V call() throws Exception;
+    }
+
+    private static class Flight<V> {
+        final CountDownLatch done = new CountDownLatch(1);
+        V value;
+        //Exception or Error, so waiting callers never see a missing result as success
+        Throwable error;
+    }
+
+    private final HashMap<String, Flight<V>> flights = new HashMap<>();
+
+    /**
+     * @param key Identifies equal calls
+     * @param call Executed if no equal call is running
+     * @return Result of this or the already running call
+     * @throws Exception Error of this or the already running call
+     */
+    public V run(String key, Call<V> call) throws Exception {
+        Flight<V> flight;
+        boolean leader = false;
+        synchronized (flights) {
+            flight = flights.get(key);
+            if (flight == null) {
+                flight = new Flight<>();
+                flights.put(key, flight);
+                leader = true;
+            }
+        }
+
+        //Wait for running call
+        if (!leader) {
+            flight.done.await();
+            if (flight.error instanceof Error)
+                throw (Error) flight.error;
+            if (flight.error != null)
+                throw (Exception) flight.error;
+            return flight.value;
+        }
+
+        try {
+            flight.value = call.call();
+            return flight.value;
+        } catch (Exception e) {
+            flight.error = e;
+            throw e;
+        } catch (Error e) {
+            flight.error = e;
+            throw e;
+        } finally {
+            synchronized (flights) {
+                flights.remove(key);
+            }
+            flight.done.countDown();
+        }
+    }
+}
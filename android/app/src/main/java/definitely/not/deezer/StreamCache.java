@@ -0,0 +1,461 @@
+package definitely.not.deezer;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Sparse on-disk cache of streamed tracks, keyed by track ID and requested quality.
+ * Audio is stored as received from the CDN (encrypted) in fixed size blocks, a bitmap keeps track of present blocks.
+ * Least recently used tracks are evicted when the cache grows over its byte budget.
+ */
+public class StreamCache {
+    //Multiple of 2048 chunks, same as pooled buffers
+    static final int BLOCK_SIZE = BufferPool.BUFFER_SIZE;
+    //Save bitmap after this many new blocks, otherwise on release
+    static final int SAVE_INTERVAL = 64;
+    static final int META_VERSION = 2;
+    //Subdirectory of app cache dir
+    static final String DIR = "stream";
+
+    private final File directory;
+    private long budget;
+    private long totalSize = 0;
+    private boolean loaded = false;
+    //Access ordered, eldest = least recently used
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    StreamCache(File directory, long budget) {
+        this.directory = directory;
+        this.budget = budget;
+    }
+
+    static String key(String trackId, int quality) {
+        return trackId + "_" + quality;
+    }
+
+    synchronized void setBudget(long budget) {
+        this.budget = budget;
+        evict();
+    }
+
+    //Load index of cached tracks, oldest first so LRU order survives restarts
+    private void load() {
+        if (loaded) return;
+        loaded = true;
+        if (!directory.exists() && !directory.mkdirs()) return;
+
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".meta"));
+        if (files == null) return;
+        Arrays.sort(files, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for (File meta : files) {
+            String key = meta.getName().substring(0, meta.getName().length() - 5);
+            try {
+                Entry entry = Entry.load(this, key);
+                entries.put(key, entry);
+                totalSize += entry.cachedBytes();
+            } catch (Exception e) {
+                //Corrupted, remove
+                meta.delete();
+                new File(directory, key + ".blocks").delete();
+            }
+        }
+        evict();
+    }
+
+    /**
+     * Get cached track, has to be released after use.
+     * @param trackId Requested track ID
+     * @param quality Requested quality
+     * @return Entry or null if not cached
+     */
+    synchronized Entry open(String trackId, int quality) throws IOException {
+        load();
+        Entry entry = entries.get(key(trackId, quality));
+        if (entry == null)
+            return null;
+        entry.acquire();
+        return entry;
+    }
+
+    /**
+     * Create empty cache entry (or return existing one), has to be released after use.
+     * @param trackId Requested track ID
+     * @param quality Requested quality
+     * @param streamTrackId Track ID after fallback, used for decryption
+     * @param streamQuality Quality after fallback
+     * @param encrypted Whether CDN data is encrypted
+     * @param size Size of whole track
+     * @param downgraded Streamed in lower quality because of slow network, not because of fallback
+     */
+    synchronized Entry create(String trackId, int quality, String streamTrackId, int streamQuality, boolean encrypted, long size, boolean downgraded) throws IOException {
+        load();
+        String key = key(trackId, quality);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            entry = new Entry(this, key, streamTrackId, streamQuality, encrypted, size, downgraded, new BitSet());
+            entries.put(key, entry);
+        }
+        entry.acquire();
+        return entry;
+    }
+
+    /**
+     * Remove track streamed in lower quality because of slow network, if the network now allows better one.
+     * Kept while being read, so requests of the same playback don't switch to a file of different size.
+     * @param quality Requested quality
+     * @param available Quality the network can sustain now
+     */
+    synchronized void dropDowngraded(String trackId, int quality, int available) {
+        load();
+        Entry entry = entries.get(key(trackId, quality));
+        if (entry != null && entry.downgraded && entry.quality < available && entry.users == 0)
+            invalidate(entry);
+    }
+
+    synchronized void release(Entry entry) {
+        entry.users--;
+        if (entry.users == 0) {
+            entry.close();
+            //Invalidated while in use
+            if (entries.get(entry.key) != entry)
+                entry.delete();
+        }
+        evict();
+    }
+
+    /**
+     * Remove track from cache, for example when data doesn't match the CDN anymore.
+     * Deleted once all users release it.
+     */
+    synchronized void invalidate(Entry entry) {
+        if (entries.get(entry.key) != entry)
+            return;
+        entries.remove(entry.key);
+        totalSize -= entry.cachedBytes();
+        if (entry.users == 0)
+            entry.delete();
+    }
+
+    //New block written
+    private synchronized void added(Entry entry, long bytes) {
+        if (entries.get(entry.key) == entry)
+            totalSize += bytes;
+        evict();
+    }
+
+    /**
+     * Copy completely cached track into file, decrypted, so downloading it needs no network.
+     * Only reads the cache files without touching the index, usable from DownloadService process.
+     * @param directory Cache directory
+     * @param trackId Requested track ID, cached in any quality
+     * @param streamTrackId Track ID after fallback, cached data has to be of it
+     * @param streamQuality Quality after fallback
+     * @param size Expected size of track, cache isn't used if unknown (-1)
+     * @param out File to write
+     * @return false if not cached completely, or copy isn't valid audio (file is removed then)
+     */
+    static boolean export(File directory, String trackId, String streamTrackId, int streamQuality, long size, File out) throws IOException {
+        //Complete cache entry of a stale file would pass the other checks
+        if (size <= 0)
+            return false;
+        StreamCache cache = new StreamCache(directory, Long.MAX_VALUE);
+        for (int quality : ThroughputEstimator.QUALITIES) {
+            String key = key(trackId, quality);
+            if (!new File(directory, key + ".meta").exists())
+                continue;
+            Entry entry;
+            try {
+                entry = Entry.load(cache, key);
+            } catch (IOException e) {
+                continue;
+            }
+            if (!entry.trackId.equals(streamTrackId) || entry.quality != streamQuality || !entry.isComplete())
+                continue;
+            if (entry.size != size)
+                continue;
+
+            long written = 0;
+            ByteBuffer buffer = BufferPool.acquire();
+            try (FileChannel data = new RandomAccessFile(entry.dataFile, "r").getChannel();
+                 FileChannel output = new FileOutputStream(out).getChannel();
+                 ReadableByteChannel source = entry.encrypted ? new DecryptingChannel(data, BlowfishEngine.forTrack(entry.trackId), 0) : data) {
+                while (written < entry.size && source.read(buffer) != -1) {
+                    buffer.flip();
+                    buffer.limit((int) Math.min(buffer.limit(), entry.size - written));
+                    while (buffer.hasRemaining())
+                        written += output.write(buffer);
+                    buffer.clear();
+                }
+            } finally {
+                BufferPool.release(buffer);
+            }
+            //Truncated or not audio, download instead
+            if (written != entry.size || !isAudio(out, entry.quality)) {
+                out.delete();
+                return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    //Check file starts with FLAC or MP3 (ID3 tag / frame sync) header
+    private static boolean isAudio(File file, int quality) throws IOException {
+        byte[] header = new byte[4];
+        try (DataInputStream in = new DataInputStream(new FileInputStream(file))) {
+            in.readFully(header);
+        }
+        if (quality == 9)
+            return header[0] == 'f' && header[1] == 'L' && header[2] == 'a' && header[3] == 'C';
+        return (header[0] == 'I' && header[1] == 'D' && header[2] == '3') || ((header[0] & 0xff) == 0xff && (header[1] & 0xe0) == 0xe0);
+    }
+
+    //Remove least recently used tracks not being read until under budget
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (totalSize > budget && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            if (entry.users > 0)
+                continue;
+            iterator.remove();
+            totalSize -= entry.cachedBytes();
+            entry.delete();
+        }
+    }
+
+    static class Entry {
+        final StreamCache cache;
+        final String key;
+        final String trackId;
+        final int quality;
+        final boolean encrypted;
+        final long size;
+        final boolean downgraded;
+        private final BitSet blocks;
+        //Blocks being downloaded by a channel
+        private final BitSet pending = new BitSet();
+        private final File dataFile;
+        private final File metaFile;
+        private FileChannel channel;
+        private int users = 0;
+        private int unsaved = 0;
+
+        Entry(StreamCache cache, String key, String trackId, int quality, boolean encrypted, long size, boolean downgraded, BitSet blocks) {
+            this.cache = cache;
+            this.key = key;
+            this.trackId = trackId;
+            this.quality = quality;
+            this.encrypted = encrypted;
+            this.size = size;
+            this.downgraded = downgraded;
+            this.blocks = blocks;
+            this.dataFile = new File(cache.directory, key + ".blocks");
+            this.metaFile = new File(cache.directory, key + ".meta");
+        }
+
+        static Entry load(StreamCache cache, String key) throws IOException {
+            try (DataInputStream in = new DataInputStream(new FileInputStream(new File(cache.directory, key + ".meta")))) {
+                if (in.readInt() != META_VERSION)
+                    throw new IOException("Unsupported cache metadata version!");
+                String trackId = in.readUTF();
+                int quality = in.readInt();
+                boolean encrypted = in.readBoolean();
+                long size = in.readLong();
+                boolean downgraded = in.readBoolean();
+                byte[] bitmap = new byte[in.readInt()];
+                in.readFully(bitmap);
+                Entry entry = new Entry(cache, key, trackId, quality, encrypted, size, downgraded, BitSet.valueOf(bitmap));
+                //Blocks might be missing if data file was removed
+                if (entry.dataFile.length() < entry.cachedBytes())
+                    throw new IOException("Cache data file truncated!");
+                return entry;
+            }
+        }
+
+        private void acquire() throws IOException {
+            if (users == 0) {
+                if (!cache.directory.exists())
+                    cache.directory.mkdirs();
+                channel = new RandomAccessFile(dataFile, "rw").getChannel();
+            }
+            users++;
+        }
+
+        private void close() {
+            save();
+            try {
+                channel.close();
+            } catch (Exception ignored) {}
+            channel = null;
+        }
+
+        private void delete() {
+            dataFile.delete();
+            metaFile.delete();
+        }
+
+        //Write metadata and bitmap, replaced atomically since DownloadService reads it from another process
+        synchronized void save() {
+            if (!cache.directory.exists())
+                return;
+            byte[] bitmap = blocks.toByteArray();
+            File tmp = new File(metaFile.getPath() + ".tmp");
+            try (DataOutputStream out = new DataOutputStream(new FileOutputStream(tmp))) {
+                out.writeInt(META_VERSION);
+                out.writeUTF(trackId);
+                out.writeInt(quality);
+                out.writeBoolean(encrypted);
+                out.writeLong(size);
+                out.writeBoolean(downgraded);
+                out.writeInt(bitmap.length);
+                out.write(bitmap);
+            } catch (Exception e) {
+                e.printStackTrace();
+                tmp.delete();
+                return;
+            }
+            if (!tmp.renameTo(metaFile)) {
+                tmp.delete();
+                return;
+            }
+            unsaved = 0;
+        }
+
+        int blockCount() {
+            return (int) ((size + BLOCK_SIZE - 1) / BLOCK_SIZE);
+        }
+
+        int blockLength(int block) {
+            return (int) Math.min(BLOCK_SIZE, size - (long) block * BLOCK_SIZE);
+        }
+
+        synchronized boolean has(int block) {
+            return blocks.get(block);
+        }
+
+        //First present block from index, or blockCount() if none
+        synchronized int nextPresent(int from) {
+            int next = blocks.nextSetBit(from);
+            return (next == -1) ? blockCount() : Math.min(next, blockCount());
+        }
+
+        /**
+         * Claim missing blocks for downloading, so other channels wait for them instead of downloading too.
+         * @param from First block
+         * @param to Last block (exclusive)
+         * @param force Also claim blocks pending in other channels
+         * @return End of claimed run (exclusive), from if block is present or pending
+         */
+        synchronized int claim(int from, int to, boolean force) {
+            int end = from;
+            while (end < to && !blocks.get(end) && (force || !pending.get(end)))
+                end++;
+            pending.set(from, end);
+            return end;
+        }
+
+        //Give up claimed blocks which weren't downloaded
+        synchronized void unclaim(int from, int to) {
+            if (from >= to)
+                return;
+            pending.clear(from, to);
+            notifyAll();
+        }
+
+        /**
+         * Wait until block isn't pending anymore.
+         * @return false on timeout
+         */
+        synchronized boolean await(int block, long timeout) throws InterruptedIOException {
+            long deadline = System.currentTimeMillis() + timeout;
+            while (pending.get(block) && !blocks.get(block)) {
+                long remaining = deadline - System.currentTimeMillis();
+                if (remaining <= 0)
+                    return false;
+                try {
+                    wait(remaining);
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException("Interrupted waiting for block " + block);
+                }
+            }
+            return true;
+        }
+
+        synchronized boolean isComplete() {
+            return blocks.cardinality() >= blockCount();
+        }
+
+        synchronized long cachedBytes() {
+            long bytes = (long) blocks.cardinality() * BLOCK_SIZE;
+            //Last block is shorter
+            if (blocks.get(blockCount() - 1))
+                bytes -= BLOCK_SIZE - blockLength(blockCount() - 1);
+            return bytes;
+        }
+
+        //List of missing block indexes
+        synchronized List<Integer> missing() {
+            List<Integer> out = new ArrayList<>();
+            for (int i = blocks.nextClearBit(0); i < blockCount(); i = blocks.nextClearBit(i + 1))
+                out.add(i);
+            return out;
+        }
+
+        /**
+         * Read present block.
+         * @param block Block index
+         * @param dst Cleared buffer of at least BLOCK_SIZE, flipped after reading
+         */
+        void read(int block, ByteBuffer dst) throws IOException {
+            int length = blockLength(block);
+            long position = (long) block * BLOCK_SIZE;
+            dst.limit(length);
+            while (dst.hasRemaining()) {
+                if (channel.read(dst, position + dst.position()) == -1)
+                    throw new IOException("Cached block " + block + " of " + key + " is truncated!");
+            }
+            dst.flip();
+        }
+
+        /**
+         * Store downloaded block.
+         * @param block Block index
+         * @param src Whole block, position and limit are kept
+         */
+        void write(int block, ByteBuffer src) throws IOException {
+            ByteBuffer data = src.duplicate();
+            long position = (long) block * BLOCK_SIZE;
+            while (data.hasRemaining()) {
+                channel.write(data, position + data.position() - src.position());
+            }
+            boolean save;
+            synchronized (this) {
+                pending.clear(block);
+                notifyAll();
+                if (blocks.get(block))
+                    return;
+                blocks.set(block);
+                unsaved++;
+                save = unsaved >= SAVE_INTERVAL || isComplete();
+            }
+            if (save)
+                save();
+            cache.added(this, src.remaining());
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package definitely.not.deezer;
+
+import java.io.IOException;
+
+/**
+ * HTTP server engine used by StreamServer, engines only handle the protocol,
+ * responses are created by the Handler.
+ */
+public interface StreamEngine {
+
+    interface Handler {
+        StreamResponse handle(StreamRequest request) throws Exception;
+    }
+
+    void start() throws IOException;
+
+    void stop();
+}
@@ -0,0 +1,119 @@
+package definitely.not.deezer;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Playback quality histograms of StreamServer, to tell whether stutter comes from URL resolution,
+ * the CDN, decryption or the device. Exposed to UI and as text on /metrics.
+ */
+public class StreamMetrics {
+    //Reads waiting longer than this after first byte count as stalls
+    static final long STALL_THRESHOLD = 200;
+    //Upper bucket bounds in milliseconds, last bucket is unbounded
+    static final double[] BOUNDS = {1, 2, 5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000};
+
+    static class Histogram {
+        final String name;
+        private final long[] buckets = new long[BOUNDS.length + 1];
+        private long count = 0;
+        private double sum = 0;
+        private double max = 0;
+
+        Histogram(String name) {
+            this.name = name;
+        }
+
+        synchronized void record(double millis) {
+            int bucket = 0;
+            while (bucket < BOUNDS.length && millis > BOUNDS[bucket])
+                bucket++;
+            buckets[bucket]++;
+            count++;
+            sum += millis;
+            max = Math.max(max, millis);
+        }
+
+        void recordNanos(long nanos) {
+            record(nanos / 1e6);
+        }
+
+        synchronized HashMap<String, Object> toJSON() {
+            HashMap<String, Object> out = new HashMap<>();
+            List<Long> counts = new ArrayList<>();
+            for (long bucket : buckets)
+                counts.add(bucket);
+            List<Double> bounds = new ArrayList<>();
+            for (double bound : BOUNDS)
+                bounds.add(bound);
+            out.put("bounds", bounds);
+            out.put("buckets", counts);
+            out.put("count", count);
+            out.put("sum", sum);
+            out.put("max", max);
+            return out;
+        }
+
+        //Prometheus text format, cumulative buckets
+        synchronized void toText(StringBuilder out) {
+            String metric = "stream_" + name + "_ms";
+            out.append("# TYPE ").append(metric).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                cumulative += buckets[i];
+                String bound = (i < BOUNDS.length) ? Double.toString(BOUNDS[i]) : "+Inf";
+                out.append(metric).append("_bucket{le=\"").append(bound).append("\"} ").append(cumulative).append('\n');
+            }
+            out.append(metric).append("_sum ").append(sum).append('\n');
+            out.append(metric).append("_count ").append(count).append('\n');
+        }
+    }
+
+    //Request start to first byte of body
+    final Histogram firstByte = new Histogram("first_byte");
+    //Quality & ID fallback, only when not cached
+    final Histogram resolve = new Histogram("resolve");
+    //CDN request to response headers
+    final Histogram connect = new Histogram("connect");
+    //Time spent decrypting per request
+    final Histogram decrypt = new Histogram("decrypt");
+    //Duration of reads stalled over threshold
+    final Histogram stall = new Histogram("stall");
+    private final Histogram[] histograms = {firstByte, resolve, connect, decrypt, stall};
+
+    private long requests = 0;
+    private long errors = 0;
+
+    //Response of a request was generated
+    synchronized void request(int status) {
+        requests++;
+        if (status >= 500)
+            errors++;
+    }
+
+    //For passing into UI
+    HashMap<String, Object> toJSON() {
+        HashMap<String, Object> out = new HashMap<>();
+        for (Histogram histogram : histograms)
+            out.put(histogram.name, histogram.toJSON());
+        synchronized (this) {
+            out.put("requests", requests);
+            out.put("errors", errors);
+        }
+        return out;
+    }
+
+    String toText() {
+        StringBuilder out = new StringBuilder();
+        for (Histogram histogram : histograms)
+            histogram.toText(out);
+        synchronized (this) {
+            out.append("# TYPE stream_requests_total counter\n");
+            out.append("stream_requests_total ").append(requests).append('\n');
+            out.append("# TYPE stream_errors_total counter\n");
+            out.append("stream_errors_total ").append(errors).append('\n');
+        }
+        return out.toString();
+    }
+}
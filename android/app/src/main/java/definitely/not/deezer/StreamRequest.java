@@ -0,0 +1,45 @@
+package definitely.not.deezer;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Engine independent HTTP request received by StreamServer.
+ */
+public class StreamRequest {
+    final String method;
+    final String uri;
+    final Map<String, List<String>> parameters;
+    //Lowercase names
+    final Map<String, String> headers;
+
+    //Parsed Range header, end -1 if open
+    boolean isRanged = false;
+    int startBytes = 0;
+    int end = -1;
+
+    StreamRequest(String method, String uri, Map<String, List<String>> parameters, Map<String, String> headers) {
+        this.method = method;
+        this.uri = uri;
+        this.parameters = parameters;
+        this.headers = headers;
+
+        String rangeHeader = headers.get("range");
+        if (rangeHeader != null && rangeHeader.startsWith("bytes")) {
+            isRanged = true;
+            String[] ranges = rangeHeader.split("=")[1].split("-");
+            startBytes = Integer.parseInt(ranges[0].trim());
+            if (ranges.length > 1 && !ranges[1].trim().isEmpty()) {
+                end = Integer.parseInt(ranges[1].trim());
+            }
+        }
+    }
+
+    //First value of query parameter or null
+    String parameter(String name) {
+        List<String> values = parameters.get(name);
+        if (values == null || values.isEmpty())
+            return null;
+        return values.get(0);
+    }
+}
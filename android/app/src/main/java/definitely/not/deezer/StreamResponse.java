@@ -0,0 +1,71 @@
+package definitely.not.deezer;
+
+import java.io.ByteArrayInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+
+/**
+ * Engine independent HTTP response of StreamServer.
+ * Body is either a channel of known length or a region of a file, which engines can send without copying.
+ */
+public class StreamResponse {
+    static final String MIME_PLAINTEXT = "text/plain";
+
+    final int status;
+    final String mime;
+    final LinkedHashMap<String, String> headers = new LinkedHashMap<>();
+    final ReadableByteChannel body;
+    final FileChannel file;
+    final long position;
+    final long length;
+
+    private StreamResponse(int status, String mime, ReadableByteChannel body, FileChannel file, long position, long length) {
+        this.status = status;
+        this.mime = mime;
+        this.body = body;
+        this.file = file;
+        this.position = position;
+        this.length = length;
+    }
+
+    static StreamResponse text(int status, String text) {
+        byte[] data = text.getBytes(StandardCharsets.UTF_8);
+        return new StreamResponse(status, MIME_PLAINTEXT, Channels.newChannel(new ByteArrayInputStream(data)), null, 0, data.length);
+    }
+
+    static StreamResponse channel(int status, String mime, ReadableByteChannel body, long length) {
+        return new StreamResponse(status, mime, body, null, 0, length);
+    }
+
+    static StreamResponse file(int status, String mime, FileChannel file, long position, long length) {
+        return new StreamResponse(status, mime, null, file, position, length);
+    }
+
+    StreamResponse header(String name, String value) {
+        headers.put(name, value);
+        return this;
+    }
+
+    void close() {
+        try {
+            if (body != null) body.close();
+            if (file != null) file.close();
+        } catch (Exception ignored) {}
+    }
+
+    static String statusText(int status) {
+        switch (status) {
+            case 200: return "OK";
+            case 202: return "Accepted";
+            case 206: return "Partial Content";
+            case 400: return "Bad Request";
+            case 404: return "Not Found";
+            case 405: return "Method Not Allowed";
+            case 416: return "Requested Range Not Satisfiable";
+            default: return "Internal Server Error";
+        }
+    }
+}
@@ -1,49 +1,109 @@
 package definitely.not.deezer;
 
+import android.content.Context;
 import android.content.pm.PackageManager;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.util.Log;
 
-import java.io.BufferedInputStream;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FilterInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.RandomAccessFile;
-import java.net.URL;
+import java.net.HttpURLConnection;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
-import javax.net.ssl.HttpsURLConnection;
-import fi.iki.elonen.NanoHTTPD;
 
 public class StreamServer {
 
-    public HashMap<String, StreamInfo> streams = new HashMap<>();
-
-    private WebServer server;
-    private final String offlinePath;
+    //Info of recently played tracks by ID, least recently used dropped
+    static final int MAX_STREAMS = 32;
+    private final LinkedHashMap<String, StreamInfo> streams = new LinkedHashMap<String, StreamInfo>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, StreamInfo> eldest) {
+            return size() > MAX_STREAMS;
+        }
+    };
+
+    //Engines, selectable when starting
+    static final String ENGINE_NANOHTTPD = "nanohttpd";
+    static final String ENGINE_NIO = "nio";
+
+    private StreamEngine server;
+    final OfflineCatalog offlineCatalog;
+    private final StreamCache cache;
+    private final StreamUrlCache urlCache = new StreamUrlCache();
+    private final SingleFlight<StreamUrlCache.Resolved> resolving = new SingleFlight<>();
+    //Seconds of audio prefetched by default
+    static final int PREFETCH_SECONDS = 15;
+    private final ExecutorService prefetchExecutor = Executors.newSingleThreadExecutor();
+    //Read ahead buffer size, smaller responses aren't buffered
+    static final int DEFAULT_READ_AHEAD_SECONDS = 10;
+    static final int MIN_READ_AHEAD = 64 * 1024;
+    private volatile int readAheadSeconds = DEFAULT_READ_AHEAD_SECONDS;
+    //Producers of concurrent responses, superseded ones stop when their session is cancelled
+    static final int MAX_READ_AHEAD_THREADS = 4;
+    private final ExecutorService readAheadExecutor = new ThreadPoolExecutor(0, MAX_READ_AHEAD_THREADS, 30, TimeUnit.SECONDS, new SynchronousQueue<>());
+    private final HashSet<String> prefetching = new HashSet<>();
+    final StreamMetrics metrics = new StreamMetrics();
+    final StreamSessions sessions = new StreamSessions(metrics);
+    //Predicted next tracks are prefetched once current one is buffered, within byte budget per window
+    static final int PREDICT_DELAY_SECONDS = 10;
+    static final long PREDICT_BUDGET = 32 * 1024 * 1024;
+    static final long PREDICT_BUDGET_WINDOW = 60 * 60 * 1000;
+    final PlayHistory history;
+    private final ScheduledExecutorService historyExecutor = Executors.newSingleThreadScheduledExecutor();
+    private long predictWindowStart = 0;
+    private long predictBytes = 0;
+
+    private final Context context;
+    private final ThroughputEstimator estimator = new ThroughputEstimator();
 
     //Shared log & API
     private final DownloadLog logger;
     private final Deezer deezer;
-    private boolean authorized = false;
 
-    StreamServer(String arl, String offlinePath) {
+    StreamServer(Context context, String arl, String offlinePath, File cacheDir, long cacheSize) {
+        this.context = context;
         //Initialize shared variables
         logger = new DownloadLog();
         deezer = new Deezer();
         deezer.init(logger, arl);
-        this.offlinePath = offlinePath;
+        this.offlineCatalog = new OfflineCatalog(offlinePath);
+        this.cache = new StreamCache(cacheDir, cacheSize);
+        this.history = new PlayHistory(new File(context.getFilesDir(), "play_history.json"));
     }
 
     //Create server
     void start() {
+        start(ENGINE_NANOHTTPD);
+    }
+
+    void start(String engine) {
         try {
             String host = "127.0.0.1";
             int port = 36958;
-            server = new WebServer(host, port);
+            if (ENGINE_NIO.equals(engine))
+                server = new NioStreamEngine(host, port, new Handler());
+            else
+                server = new NanoStreamEngine(host, port, new Handler());
             server.start();
+            HttpClient.prewarm(HttpClient.DEEZER_URLS);
         } catch (Exception e) {
             e.printStackTrace();
         }
@@ -52,265 +112,737 @@ public class StreamServer {
     void stop() {
         if (server != null)
             server.stop();
+        prefetchExecutor.shutdownNow();
+        readAheadExecutor.shutdownNow();
+        historyExecutor.shutdownNow();
+        history.save();
+    }
+
+    //Byte budget of stream cache
+    void setCacheSize(long cacheSize) {
+        cache.setBudget(cacheSize);
+    }
+
+    //Seconds of audio downloaded ahead of player, 0 to disable
+    void setReadAhead(int seconds) {
+        readAheadSeconds = seconds;
+    }
+
+    /**
+     * Get cached track, or resolve URL & create new cache entry. Null if unavailable
+     * @param newPlayback Request from start of track, may replace track cached in lower quality
+     */
+    private StreamCache.Entry openEntry(DeezerUpstream upstream, boolean newPlayback) throws IOException {
+        deezer.authorize();
+
+        estimator.setNetwork(networkName());
+        //Network got faster since track was cached in lower quality
+        if (newPlayback)
+            cache.dropDowngraded(upstream.trackId, upstream.quality, estimator.choose(upstream.quality));
+
+        //Cached tracks don't need URL, only resolve if missing blocks are requested
+        StreamCache.Entry entry = cache.open(upstream.trackId, upstream.quality);
+        if (entry == null) {
+            //New track, stream lower quality if network can't sustain requested one.
+            //Not in the middle of playback, earlier requests may have been served from in-flight download in requested quality
+            int quality = newPlayback ? estimator.choose(upstream.quality) : upstream.quality;
+            if (quality != upstream.quality) {
+                Log.d("StreamServer", "Throughput " + (long) estimator.estimate() + "B/s, streaming " + upstream.trackId + " in quality " + quality + " instead of " + upstream.quality);
+                upstream.setStreamQuality(quality);
+            }
+            if (upstream.resolve() == null)
+                return null;
+            Deezer.QualityInfo qualityInfo = upstream.qualityInfo;
+            entry = cache.create(upstream.trackId, upstream.quality, qualityInfo.trackId, qualityInfo.quality, qualityInfo.encrypted, upstream.size(), quality != upstream.quality);
+            //Concurrent request created the entry first, possibly in another quality
+            if (entry.quality != qualityInfo.quality)
+                upstream.setStreamQuality(entry.quality);
+        } else if (entry.quality != upstream.quality) {
+            //Missing blocks have to come from the same file, not the requested quality
+            upstream.setStreamQuality(entry.quality);
+        }
+        upstream.entry = entry;
+        return entry;
+    }
+
+    //Identifies current network for throughput estimates
+    private String networkName() {
+        try {
+            ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            NetworkInfo networkInfo = connectivityManager.getActiveNetworkInfo();
+            if (networkInfo == null)
+                return "none";
+            return networkInfo.getTypeName() + ":" + networkInfo.getExtraInfo();
+        } catch (Exception e) {
+            return "unknown";
+        }
+    }
+
+    //Approximate bitrate of quality in bytes/s, for converting seconds of audio to bytes
+    static long bytesPerSecond(int quality) {
+        if (quality == 9) return 128000;
+        if (quality == 3) return 40000;
+        return 16000;
+    }
+
+    /**
+     * Resolve URL and download start of track into the stream cache in background,
+     * so the player's first request is served locally on track transition.
+     * @param bytes Amount of data from start of track to cache
+     */
+    void prefetch(int quality, String trackId, String trackToken, String md5origin, String mediaVersion, long bytes) {
+        prefetch(quality, trackId, trackToken, md5origin, mediaVersion, bytes, null);
+    }
+
+    //Prefetch finished, successful or not
+    interface PrefetchCallback {
+        //Bytes downloaded from CDN (also if failed meanwhile), 0 if already cached
+        void done(boolean success, long downloaded);
+    }
+
+    private void prefetch(int quality, String trackId, String trackToken, String md5origin, String mediaVersion, long bytes, PrefetchCallback callback) {
+        String key = StreamCache.key(trackId, quality);
+        synchronized (prefetching) {
+            //Already prefetching, not counted as another prefetch
+            if (!prefetching.add(key)) {
+                if (callback != null)
+                    callback.done(false, 0);
+                return;
+            }
+        }
+        Runnable task = () -> {
+            DeezerUpstream upstream = new DeezerUpstream(quality, trackId, trackToken, md5origin, mediaVersion);
+            boolean success = false;
+            long downloaded = 0;
+            try {
+                StreamCache.Entry entry = openEntry(upstream, true);
+                if (entry == null) {
+                    Log.d("StreamServer", "Prefetch failed, track unavailable: " + trackId);
+                    return;
+                }
+                //Reading through cache stores missing blocks
+                try (CachedChannel channel = new CachedChannel(entry, upstream, 0, bytes).setEstimator(estimator)) {
+                    ByteBuffer buffer = ByteBuffer.allocate(StreamCache.BLOCK_SIZE);
+                    try {
+                        while (channel.read(buffer) != -1)
+                            buffer.clear();
+                        success = true;
+                    } finally {
+                        downloaded = channel.downloaded();
+                    }
+                }
+            } catch (Exception e) {
+                Log.d("StreamServer", "Prefetch failed: " + e.getMessage());
+            } finally {
+                synchronized (prefetching) {
+                    prefetching.remove(key);
+                }
+                if (callback != null)
+                    callback.done(success, downloaded);
+            }
+        };
+        try {
+            prefetchExecutor.execute(task);
+        } catch (RejectedExecutionException e) {
+            //Server stopped
+            synchronized (prefetching) {
+                prefetching.remove(key);
+            }
+            if (callback != null)
+                callback.done(false, 0);
+        }
+    }
+
+    //Record track start off the request thread, schedule prefetch of likely next tracks
+    private void played(DeezerUpstream upstream) {
+        PlayHistory.TrackParams params = new PlayHistory.TrackParams(upstream.trackToken, upstream.md5origin, upstream.mediaVersion, System.currentTimeMillis());
+        try {
+            historyExecutor.execute(() -> {
+                List<String> predictions = history.played(upstream.trackId, params);
+                if (!predictions.isEmpty())
+                    historyExecutor.schedule(() -> prefetchPredicted(upstream.trackId, upstream.quality, predictions), PREDICT_DELAY_SECONDS, TimeUnit.SECONDS);
+            });
+        } catch (RejectedExecutionException ignored) {
+            //Server stopped, history was saved already
+        }
+    }
+
+    private void prefetchPredicted(String trackId, int quality, List<String> predictions) {
+        //Track changed before prefetch
+        if (!trackId.equals(history.lastTrack()))
+            return;
+        long bytes = PREFETCH_SECONDS * bytesPerSecond(quality);
+        for (String next : predictions) {
+            PlayHistory.TrackParams params = history.getParams(next);
+            if (params == null)
+                continue;
+            if (isMetered() || !reservePredictBudget(bytes)) {
+                history.skipped();
+                continue;
+            }
+            Log.d("StreamServer", "Prefetching predicted track " + next + " after " + trackId);
+            //Reserved up front so parallel prefetches stay in budget, charged with what was actually downloaded
+            prefetch(quality, next, params.trackToken, params.md5origin, params.mediaVersion, bytes, (success, downloaded) -> {
+                refundPredictBudget(bytes - downloaded);
+                if (success)
+                    history.prefetched(next, downloaded);
+                else
+                    history.skipped();
+            });
+        }
+    }
+
+    //Don't spend mobile data on guesses
+    private boolean isMetered() {
+        try {
+            ConnectivityManager connectivityManager = (ConnectivityManager) context.getSystemService(Context.CONNECTIVITY_SERVICE);
+            return connectivityManager.isActiveNetworkMetered();
+        } catch (Exception e) {
+            return true;
+        }
+    }
+
+    private synchronized void refundPredictBudget(long bytes) {
+        predictBytes = Math.max(0, predictBytes - bytes);
+    }
+
+    private synchronized boolean reservePredictBudget(long bytes) {
+        long now = System.currentTimeMillis();
+        if (now - predictWindowStart > PREDICT_BUDGET_WINDOW) {
+            predictWindowStart = now;
+            predictBytes = 0;
+        }
+        if (predictBytes + bytes > PREDICT_BUDGET)
+            return false;
+        predictBytes += bytes;
+        return true;
+    }
+
+    //Info of played track for UI, null if not played recently
+    StreamInfo getStreamInfo(String id) {
+        synchronized (streams) {
+            return streams.get(id);
+        }
+    }
+
+    //Info of track, existing one is kept if the same file is played again so counters include seeks
+    private StreamInfo streamInfo(String id, String format, long size, String source, int quality, int requestedQuality) {
+        synchronized (streams) {
+            StreamInfo info = streams.get(id);
+            if (info == null || !info.source.equals(source) || info.size != size || info.quality != quality) {
+                info = new StreamInfo(format, size, source, quality, requestedQuality);
+                streams.put(id, info);
+            }
+            return info;
+        }
     }
 
     //Information about streamed audio - for showing in UI
     public static class StreamInfo {
-        String format;
-        long size;
-        //"Stream" or "Offline"
-        String source;
+        //Window of served throughput
+        static final long THROUGHPUT_WINDOW = 1000;
+
+        final String format;
+        final long size;
+        //"Stream", "Downloading" or "Offline"
+        final String source;
+        //Streamed and requested quality, -1 if unknown (offline)
+        final int quality;
+        final int requestedQuality;
+
+        //Live counters, updated by request threads
+        private long bytesServed = 0;
+        private long upstreamBytes = 0;
+        private long cacheHits = 0;
+        private long cacheMisses = 0;
+        //Of last request, -1 if unknown
+        private long timeToFirstByte = -1;
+        private long throughput = 0;
+        private long windowStart = 0;
+        private long windowBytes = 0;
 
         StreamInfo(String format, long size, String source) {
+            this(format, size, source, -1, -1);
+        }
+
+        StreamInfo(String format, long size, String source, int quality, int requestedQuality) {
             this.format = format;
             this.size = size;
             this.source = source;
+            this.quality = quality;
+            this.requestedQuality = requestedQuality;
+        }
+
+        //Bytes sent to player
+        synchronized void served(long bytes) {
+            bytesServed += bytes;
+            long now = System.currentTimeMillis();
+            if (windowStart == 0)
+                windowStart = now;
+            windowBytes += bytes;
+            if (now - windowStart >= THROUGHPUT_WINDOW) {
+                throughput = windowBytes * 1000 / (now - windowStart);
+                windowStart = now;
+                windowBytes = 0;
+            }
+        }
+
+        synchronized void firstByte(long millis) {
+            timeToFirstByte = millis;
+        }
+
+        //Block read from stream cache
+        synchronized void cacheHit() {
+            cacheHits++;
+        }
+
+        //Block downloaded from CDN
+        synchronized void upstream(long bytes) {
+            cacheMisses++;
+            upstreamBytes += bytes;
         }
 
         //For passing into UI
-        public HashMap<String, Object> toJSON() {
+        public synchronized HashMap<String, Object> toJSON() {
             HashMap<String, Object> out = new HashMap<>();
             out.put("format", format);
             out.put("size", size);
             out.put("source", source);
+            out.put("quality", quality);
+            out.put("requestedQuality", requestedQuality);
+            out.put("bytesServed", bytesServed);
+            out.put("upstreamBytes", upstreamBytes);
+            out.put("cacheHits", cacheHits);
+            out.put("cacheMisses", cacheMisses);
+            out.put("timeToFirstByte", timeToFirstByte);
+            //Decays while player isn't reading
+            long idle = System.currentTimeMillis() - windowStart;
+            out.put("throughput", (windowStart != 0 && idle >= 2 * THROUGHPUT_WINDOW) ? windowBytes * 1000 / idle : throughput);
             return out;
         }
 
     }
 
-    private class WebServer extends NanoHTTPD {
-        public WebServer(String hostname, int port) {
-            super(hostname, port);
-        }
+    private class Handler implements StreamEngine.Handler {
 
         @Override
-        public Response serve(IHTTPSession session) {
-            //Must be only GET
-            if (session.getMethod() != Method.GET)
-                return newFixedLengthResponse(Response.Status.METHOD_NOT_ALLOWED, MIME_PLAINTEXT, "Only GET request supported!");
-
+        public StreamResponse handle(StreamRequest request) throws Exception {
+            StreamResponse response;
             try {
-                //Parse range header
-                String rangeHeader = session.getHeaders().get("range");
-                int startBytes = 0;
-                boolean isRanged = false;
-                int end = -1;
-                if (rangeHeader != null && rangeHeader.startsWith("bytes")) {
-                    isRanged = true;
-                    String[] ranges = rangeHeader.split("=")[1].split("-");
-                    startBytes = Integer.parseInt(ranges[0]);
-                    if (ranges.length > 1 && !ranges[1].equals(" ")) {
-                        end = Integer.parseInt(ranges[1]);
-                    }
-                }
+                response = route(request);
+            } catch (Exception e) {
+                metrics.request(500);
+                throw e;
+            }
+            metrics.request(response.status);
+            return response;
+        }
 
-                //Check query parameters
-                if (session.getParameters().keySet().size() < 6) {
-                    //Play offline
-                    if (session.getParameters().get("id") != null) {
-                        return offlineStream(session, startBytes, end, isRanged);
-                    }
-                    //Missing QP
-                    return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Invalid / Missing QP");
+        private StreamResponse route(StreamRequest request) {
+            //Must be only GET
+            if (!request.method.equals("GET"))
+                return StreamResponse.text(405, "Only GET request supported!");
+
+            //Playback quality histograms
+            if (request.uri.equals("/metrics"))
+                return StreamResponse.text(200, metrics.toText());
+
+            //Warm cache for upcoming track
+            if (request.uri.equals("/prefetch"))
+                return prefetchRequest(request);
+
+            //Check query parameters
+            if (request.parameters.keySet().size() < 6) {
+                //Play offline
+                if (request.parameter("id") != null) {
+                    return offlineStream(request);
                 }
+                //Missing QP
+                return StreamResponse.text(500, "Invalid / Missing QP");
+            }
 
-                //Stream
-                return deezerStream(session, startBytes, end, isRanged);
-            } catch (Exception e) {
-                e.printStackTrace();
-                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "An error occurred while serving the request.");
+            //Stream
+            return deezerStream(request);
+        }
+
+        private StreamResponse prefetchRequest(StreamRequest request) {
+            for (String key : new String[]{"q", "streamTrackId", "trackToken", "md5origin", "mv"}) {
+                if (request.parameter(key) == null)
+                    return StreamResponse.text(400, "Invalid / Missing QP");
             }
+            int quality = Integer.parseInt(request.parameter("q"));
+            int seconds = (request.parameter("seconds") == null) ? PREFETCH_SECONDS : Integer.parseInt(request.parameter("seconds"));
+            prefetch(
+                    quality,
+                    request.parameter("streamTrackId"),
+                    request.parameter("trackToken"),
+                    request.parameter("md5origin"),
+                    request.parameter("mv"),
+                    seconds * bytesPerSecond(quality)
+            );
+            return StreamResponse.text(202, "");
         }
 
-        private Response offlineStream(IHTTPSession session, int startBytes, int end, boolean isRanged) {
-            //Get path
-            String trackId = Objects.requireNonNull(session.getParameters().get("id")).get(0);
-            File file = new File(offlinePath, trackId);
-            long size = file.length();
-            //Read header
-            boolean isFlac = false;
+        private StreamResponse offlineStream(StreamRequest request) {
+            String trackId = request.parameter("id");
+            OfflineCatalog.Track track;
             try {
-                InputStream inputStream = new FileInputStream(file);
-                byte[] buffer = new byte[4];
-                inputStream.read(buffer, 0, 4);
-                inputStream.close();
-                if (new String(buffer).equals("fLaC"))
-                    isFlac = true;
+                track = offlineCatalog.get(trackId);
             } catch (Exception e) {
                 Log.d("StreamServer", "Invalid offline file: " + e.getMessage());
-                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Invalid offline file!");
+                return StreamResponse.text(500, "Invalid offline file!");
             }
             //Open file
-            RandomAccessFile randomAccessFile;
+            FileChannel fileChannel = null;
             try {
-                randomAccessFile = new RandomAccessFile(file, "r");
-                randomAccessFile.seek(startBytes);
+                fileChannel = new RandomAccessFile(track.file, "r").getChannel();
+                //Replaced without notification
+                if (fileChannel.size() != track.size)
+                    track = offlineCatalog.refresh(trackId);
             } catch (Exception e) {
+                offlineCatalog.remove(trackId);
+                try {
+                    if (fileChannel != null)
+                        fileChannel.close();
+                } catch (Exception ignored) {}
                 Log.d("StreamServer", "Failed getting offline data: " + e.getMessage());
-                return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Failed getting data!");
+                return StreamResponse.text(500, "Failed getting data!");
             }
+            long size = track.size;
+            boolean isFlac = track.flac;
 
-            //Generate response
-            Response response = newFixedLengthResponse(
-                    isRanged ? Response.Status.PARTIAL_CONTENT : Response.Status.OK,
+            //Generate response, engine sends the file region
+            long last = (request.end == -1 || request.end >= size) ? size - 1 : request.end;
+            StreamResponse response = StreamResponse.file(
+                    request.isRanged ? 206 : 200,
                     isFlac ? "audio/flac" : "audio/mpeg",
-                    new InputStream() {
-                        @Override
-                        public int read() throws IOException {
-                            return 0;
-                        }
-                        //Pass thru
-                        @Override
-                        public int read(byte[] b, int off, int len) throws IOException {
-                            return randomAccessFile.read(b, off, len);
-                        }
-                    },
-                    ((end == -1) ? size : end) - startBytes
+                    fileChannel,
+                    request.startBytes,
+                    Math.max(0, last - request.startBytes + 1)
             );
             //Ranged header
-            if (isRanged) {
-                String range = "bytes " + Integer.toString(startBytes) + "-" + Long.toString((end == -1) ? size - 1 : end);
+            if (request.isRanged) {
+                String range = "bytes " + Integer.toString(request.startBytes) + "-" + Long.toString(last);
                 range += "/" + Long.toString(size);
-                response.addHeader("Content-Range", range);
+                response.header("Content-Range", range);
             }
-            response.addHeader("Accept-Ranges", "bytes");
+            response.header("Accept-Ranges", "bytes");
 
-            //Save stream info
-            streams.put(trackId, new StreamInfo((isFlac ? "FLAC" : "MP3"), size, "Offline"));
+            //Save stream info, file is sent by the engine so the whole range counts as served
+            streamInfo(trackId, (isFlac ? "FLAC" : "MP3"), size, "Offline", -1, -1).served(response.length);
 
             return response;
         }
 
-        private Response deezerStream(IHTTPSession session, int startBytes, int end, boolean isRanged) {
-            // Authorize
-            if (!authorized) {
-                deezer.authorize();
-                authorized = true;
+        private StreamResponse deezerStream(StreamRequest request) {
+            long started = System.nanoTime();
+            int startBytes = request.startBytes;
+            //Get QP into upstream
+            DeezerUpstream upstream = new DeezerUpstream(
+                    Integer.parseInt(Objects.requireNonNull(request.parameter("q"))),
+                    Objects.requireNonNull(request.parameter("streamTrackId")),
+                    Objects.requireNonNull(request.parameter("trackToken")),
+                    Objects.requireNonNull(request.parameter("md5origin")),
+                    Objects.requireNonNull(request.parameter("mv"))
+            );
+
+            //Track is being downloaded, play the partial file instead of fetching it twice
+            InFlightDownload download = InFlightDownload.find(context.getCacheDir(), upstream.trackId);
+            if (download != null && matchesCache(download, upstream)) {
+                StreamResponse response = downloadStream(request, upstream, download, started);
+                if (response != null)
+                    return response;
             }
 
-            //Get QP into Quality Info
-            Deezer.QualityInfo qualityInfo = new Deezer.QualityInfo(
-                    Integer.parseInt(Objects.requireNonNull(session.getParameters().get("q")).get(0)),
-                    Objects.requireNonNull(session.getParameters().get("streamTrackId")).get(0),
-                    Objects.requireNonNull(session.getParameters().get("trackToken")).get(0),
-                    Objects.requireNonNull(session.getParameters().get("md5origin")).get(0),
-                    Objects.requireNonNull(session.getParameters().get("mv")).get(0),
-                    logger
-            );
-            //Fallback
-            String sURL;
+            StreamCache.Entry entry;
             try {
-                sURL = qualityInfo.fallback(deezer);
-                if (sURL == null)
-                    throw new Exception("No more to fallback!");
+                entry = openEntry(upstream, startBytes == 0);
+                if (entry == null)
+                    return StreamResponse.text(404, "Fallback failed!");
             } catch (Exception e) {
-                return newFixedLengthResponse(Response.Status.NOT_FOUND, MIME_PLAINTEXT, "Fallback failed!");
+                e.printStackTrace();
+                return StreamResponse.text(500, "Failed getting data!");
             }
 
-            //Calculate Deezer offsets
-            int _deezerStart = startBytes;
-            if (qualityInfo.encrypted)
-                _deezerStart -= startBytes % 2048;
-            final int deezerStart = _deezerStart;
-            int dropBytes = startBytes % 2048;
+            long size = entry.size;
+            if (startBytes >= size) {
+                cache.release(entry);
+                return StreamResponse.text(416, "").header("Content-Range", "bytes */" + size);
+            }
+            long last = (request.end == -1 || request.end >= size) ? size - 1 : request.end;
 
-            //Start download
+            ReadableByteChannel channel = null;
             try {
-                URL url = new URL(sURL);
-                HttpsURLConnection connection = (HttpsURLConnection) url.openConnection();
-                //Set headers
-                connection.setConnectTimeout(10000);
-                connection.setRequestMethod("GET");
-                connection.setRequestProperty("User-Agent", "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) Chrome/79.0.3945.130 Safari/537.36");
-                connection.setRequestProperty("Accept-Language", "*");
-                connection.setRequestProperty("Accept", "*/*");
-                connection.setRequestProperty("Range", "bytes=" + Integer.toString(deezerStart) + "-" + ((end == -1) ? "" : Integer.toString(end)));
-                connection.connect();
-
-                Response outResponse;
-                // Encrypted response
-                if (qualityInfo.encrypted) {
-                    //Get decryption key
-                    final byte[] key = DeezerDecryptor.getKey(qualityInfo.trackId);
-
-                    outResponse = newFixedLengthResponse(
-                            isRanged ? Response.Status.PARTIAL_CONTENT : Response.Status.OK,
-                            (qualityInfo.quality == 9) ? "audio/flac" : "audio/mpeg",
-                            new BufferedInputStream(new FilterInputStream(connection.getInputStream()) {
-
-                                int counter = deezerStart / 2048;
-                                int drop = dropBytes;
-
-                                //Decryption stream
-                                @Override
-                                public int read(byte[] b, int off, int len) throws IOException {
-                                    //Read 2048b or EOF
-                                    byte[] buffer = new byte[2048];
-                                    int read = 0;
-                                    int totalRead = 0;
-                                    while (read != -1 && totalRead != 2048) {
-                                        read = in.read(buffer, totalRead, 2048 - totalRead);
-                                        if (read != -1)
-                                            totalRead += read;
-                                    }
-                                    if (totalRead == 0)
-                                        return -1;
-
-                                    //Not full chunk return unencrypted
-                                    if (totalRead != 2048) {
-                                        System.arraycopy(buffer, 0, b, off, totalRead);
-                                        return totalRead;
-                                    }
-                                    //Decrypt every 3rd full chunk
-                                    if ((counter % 3) == 0) {
-                                        buffer = DeezerDecryptor.decryptChunk(key, buffer);
-                                    }
-                                    //Drop bytes from rounding to 2048
-                                    if (drop > 0) {
-                                        int output = 2048 - drop;
-                                        System.arraycopy(buffer, drop, b, off, output);
-                                        drop = 0;
-                                        counter++;
-                                        return output;
-                                    }
-                                    //Copy
-                                    System.arraycopy(buffer, 0, b, off, 2048);
-                                    counter++;
-                                    return 2048;
-                                }
-                            }, 2048),
-                            connection.getContentLength() - dropBytes
-                    );
-                } else {
-                    // Decrypted
-                    outResponse = newFixedLengthResponse(
-                        isRanged ? Response.Status.PARTIAL_CONTENT : Response.Status.OK,
-                        (qualityInfo.quality == 9) ? "audio/flac" : "audio/mpeg",
-                        connection.getInputStream(),
-                        connection.getContentLength()
-                    );
+                //Decrypt from rounded offset, read whole chunks so the last one is decrypted too
+                long deezerStart = entry.encrypted ? startBytes - startBytes % 2048 : startBytes;
+                long deezerEnd = entry.encrypted ? Math.min(size, (last + 2048) - (last + 2048) % 2048) : last + 1;
+                //Save stream info, use original track id since this is used to communicate with Flutter UI
+                StreamInfo info = streamInfo(
+                        Objects.requireNonNull(request.parameter("id")),
+                        ((entry.quality == 9) ? "FLAC" : "MP3"),
+                        size,
+                        "Stream",
+                        entry.quality,
+                        upstream.quality
+                );
+                CachedChannel cached = new CachedChannel(entry, upstream, deezerStart, deezerEnd).setEstimator(estimator).setStats(info);
+                channel = cached;
+
+                //Cancel older transfers of track superseded by this one
+                StreamSessions.Session session = sessions.open(entry.key, cached, request.end == -1, startBytes > 0, started).setStats(info);
+                channel = session;
+                ReadableByteChannel body = cached;
+                if (entry.encrypted)
+                    body = new DecryptingChannel(cached, BlowfishEngine.forTrack(entry.trackId), deezerStart).setMetrics(metrics).position(startBytes);
+                session.setChannel(body);
+                //Download ahead of player
+                int readAhead = (int) Math.min(readAheadSeconds * bytesPerSecond(entry.quality), last - startBytes + 1);
+                if (readAhead >= MIN_READ_AHEAD) {
+                    try {
+                        session.setChannel(new ReadAheadChannel(body, readAhead, readAheadExecutor));
+                    } catch (RejectedExecutionException e) {
+                        //All producers busy, serve directly
+                        Log.d("StreamServer", "No read ahead thread available for " + entry.key);
+                    }
                 }
 
+                StreamResponse response = StreamResponse.channel(
+                        request.isRanged ? 206 : 200,
+                        (entry.quality == 9) ? "audio/flac" : "audio/mpeg",
+                        channel,
+                        last - startBytes + 1
+                );
+
                 //Ranged header
-                if (isRanged) {
-                    String range = "bytes " + Integer.toString(startBytes) + "-" + Integer.toString((end == -1) ? (connection.getContentLength() + deezerStart) - 1 : end);
-                    range += "/" + Integer.toString(connection.getContentLength() + deezerStart);
-                    outResponse.addHeader("Content-Range", range);
+                if (request.isRanged) {
+                    String range = "bytes " + Integer.toString(startBytes) + "-" + Long.toString(last);
+                    range += "/" + Long.toString(size);
+                    response.header("Content-Range", range);
                 }
-                outResponse.addHeader("Accept-Ranges", "bytes");
+                response.header("Accept-Ranges", "bytes");
 
-                //Save stream info, use original track id since this is used to communicate with Flutter UI
-                streams.put(Objects.requireNonNull(session.getParameters().get("id")).get(0), new StreamInfo(
-                        ((qualityInfo.quality == 9) ? "FLAC" : "MP3"),
-                        deezerStart + connection.getContentLength(),
-                        "Stream"
-                ));
+                //Track started playing
+                if (startBytes == 0)
+                    played(upstream);
 
-                return outResponse;
+                return response;
             } catch (Exception e) {
                 e.printStackTrace();
+                //Closing channel releases entry
+                try {
+                    if (channel != null)
+                        channel.close();
+                    else
+                        cache.release(entry);
+                } catch (Exception ignored) {}
+            }
+            return StreamResponse.text(500, "Failed getting data!");
+        }
+
+        //In-flight file is the one cached for this request (or would be), so playback doesn't switch files between range requests
+        private boolean matchesCache(InFlightDownload download, DeezerUpstream upstream) {
+            StreamCache.Entry entry;
+            try {
+                entry = cache.open(upstream.trackId, upstream.quality);
+            } catch (IOException e) {
+                return false;
+            }
+            if (entry == null)
+                return download.quality == upstream.quality;
+            boolean matches = download.quality == entry.quality && download.streamTrackId.equals(entry.trackId) && download.size == entry.size;
+            cache.release(entry);
+            return matches;
+        }
+
+        //Serve file DownloadService is writing, null to stream from CDN instead
+        private StreamResponse downloadStream(StreamRequest request, DeezerUpstream upstream, InFlightDownload download, long started) {
+            int startBytes = request.startBytes;
+            long size = download.size;
+            if (startBytes >= size)
+                return StreamResponse.text(416, "").header("Content-Range", "bytes */" + size);
+            long last = (request.end == -1 || request.end >= size) ? size - 1 : request.end;
+
+            FileChannel fileChannel;
+            try {
+                fileChannel = new RandomAccessFile(download.file, "r").getChannel();
+            } catch (Exception e) {
+                //Finished & moved meanwhile
+                Log.d("StreamServer", "Failed opening in-flight download: " + e.getMessage());
+                return null;
+            }
+            Log.d("StreamServer", "Streaming " + upstream.trackId + " from in-flight download");
+
+            StreamInfo info = streamInfo(
+                    Objects.requireNonNull(request.parameter("id")),
+                    ((download.quality == 9) ? "FLAC" : "MP3"),
+                    size,
+                    "Downloading",
+                    download.quality,
+                    upstream.quality
+            );
+            StreamSessions.Session session = sessions.open(StreamCache.key(upstream.trackId, upstream.quality), null, request.end == -1, startBytes > 0, started).setStats(info);
+            session.setChannel(new PartialFileChannel(fileChannel, download, startBytes, last + 1));
+            StreamResponse response = StreamResponse.channel(
+                    request.isRanged ? 206 : 200,
+                    (download.quality == 9) ? "audio/flac" : "audio/mpeg",
+                    session,
+                    last - startBytes + 1
+            );
+
+            //Ranged header
+            if (request.isRanged) {
+                String range = "bytes " + Integer.toString(startBytes) + "-" + Long.toString(last);
+                range += "/" + Long.toString(size);
+                response.header("Content-Range", range);
             }
-            return newFixedLengthResponse(Response.Status.INTERNAL_ERROR, MIME_PLAINTEXT, "Failed getting data!");
+            response.header("Accept-Ranges", "bytes");
+
+            if (startBytes == 0)
+                played(upstream);
+            return response;
+        }
+    }
+
+    //Resolves CDN URL of track on first missing block
+    private class DeezerUpstream implements CachedChannel.Upstream {
+        //Requested quality, used as cache key
+        private final int quality;
+        //Quality to resolve, lower if network is slow
+        private int streamQuality;
+        private final String trackId;
+        private final String trackToken;
+        private final String md5origin;
+        private final String mediaVersion;
+        private String key;
+        Deezer.QualityInfo qualityInfo;
+        private String url;
+        StreamCache.Entry entry;
+
+        DeezerUpstream(int quality, String trackId, String trackToken, String md5origin, String mediaVersion) {
+            this.quality = quality;
+            this.streamQuality = quality;
+            this.trackId = trackId;
+            this.trackToken = trackToken;
+            this.md5origin = md5origin;
+            this.mediaVersion = mediaVersion;
+            this.qualityInfo = newQualityInfo();
+            this.key = StreamUrlCache.key(qualityInfo);
+        }
+
+        //Resolved URL is dropped, next open resolves the new quality
+        void setStreamQuality(int streamQuality) {
+            this.streamQuality = streamQuality;
+            this.url = null;
+            this.qualityInfo = newQualityInfo();
+            this.key = StreamUrlCache.key(qualityInfo);
+        }
+
+        //Fallback modifies QualityInfo, fresh one for every resolution
+        private Deezer.QualityInfo newQualityInfo() {
+            return new Deezer.QualityInfo(streamQuality, trackId, trackToken, md5origin, mediaVersion, logger);
+        }
+
+        //Quality & ID fallback, null if unavailable
+        String resolve() {
+            if (url != null)
+                return url;
+            //Concurrent requests of the same track share one resolution
+            StreamUrlCache.Resolved resolved;
+            try {
+                resolved = resolving.run(key, () -> {
+                    StreamUrlCache.Resolved cached = urlCache.get(key);
+                    if (cached != null)
+                        return cached;
+                    Deezer.QualityInfo fallbackInfo = newQualityInfo();
+                    long started = System.nanoTime();
+                    String fallbackUrl = fallbackInfo.fallback(deezer);
+                    metrics.resolve.recordNanos(System.nanoTime() - started);
+                    if (fallbackUrl == null)
+                        return null;
+                    return urlCache.put(key, fallbackUrl, fallbackInfo);
+                });
+            } catch (Exception e) {
+                Log.d("StreamServer", "Resolving " + trackId + " failed: " + e.getMessage());
+                return null;
+            }
+            if (resolved == null)
+                return null;
+            resolved.apply(qualityInfo);
+            url = resolved.url;
+            return url;
+        }
+
+        //Size of resolved track, from HEAD request if available
+        long size() throws IOException {
+            if (qualityInfo.size > 0)
+                return qualityInfo.size;
+            HttpURLConnection connection = openConnection(url, 0, 0);
+            String contentRange = connection.getHeaderField("Content-Range");
+            HttpClient.release(connection);
+            if (contentRange == null || !contentRange.contains("/"))
+                throw new IOException("Unknown size of track " + qualityInfo.trackId);
+            return Long.parseLong(contentRange.substring(contentRange.indexOf('/') + 1).trim());
+        }
+
+        @Override
+        public InputStream open(long start, long end) throws IOException {
+            try {
+                return openResolved(start, end);
+            } catch (UrlExpiredException e) {
+                //Resolve again once, URL might have expired
+                Log.d("StreamServer", e.getMessage());
+                urlCache.invalidate(key);
+                url = null;
+                qualityInfo = newQualityInfo();
+                try {
+                    return openResolved(start, end);
+                } catch (UrlExpiredException e1) {
+                    urlCache.invalidate(key);
+                    throw e1;
+                }
+            }
+        }
+
+        private InputStream openResolved(long start, long end) throws IOException {
+            if (resolve() == null)
+                throw new IOException("Fallback failed for track " + qualityInfo.trackId);
+            //Cached data is of a different file than the one available now
+            if (qualityInfo.quality != entry.quality || !qualityInfo.trackId.equals(entry.trackId)) {
+                cache.invalidate(entry);
+                throw new IOException("Cached track " + entry.key + " doesn't match CDN anymore!");
+            }
+            long started = System.nanoTime();
+            HttpURLConnection connection = openConnection(url, start, end);
+            int code = connection.getResponseCode();
+            metrics.connect.recordNanos(System.nanoTime() - started);
+            if (code == 403 || code == 404) {
+                HttpClient.release(connection);
+                throw new UrlExpiredException("Stream URL of " + qualityInfo.trackId + " rejected by CDN: " + code);
+            }
+            if (code != 206 && !(code == 200 && start == 0)) {
+                HttpClient.release(connection);
+                throw new IOException("Upstream response code: " + code);
+            }
+            return connection.getInputStream();
+        }
+
+        private HttpURLConnection openConnection(String sURL, long start, long end) throws IOException {
+            HttpURLConnection connection = HttpClient.open(sURL);
+            //Set headers, fail fast so player doesn't wait long
+            connection.setConnectTimeout(10000);
+            connection.setRequestMethod("GET");
+            connection.setRequestProperty("Accept-Language", "*");
+            connection.setRequestProperty("Range", "bytes=" + Long.toString(start) + "-" + Long.toString(end));
+            connection.connect();
+            return connection;
+        }
+    }
+
+    private static class UrlExpiredException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        UrlExpiredException(String message) {
+            super(message);
         }
     }
-}
\ No newline at end of file
+}
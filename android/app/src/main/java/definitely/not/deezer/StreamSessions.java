@@ -0,0 +1,167 @@
+package definitely.not.deezer;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Registry of open stream responses per track.
+ * A new open ended request of a track means the player seeked, older open ended responses of the track
+ * are superseded and their CDN transfers cancelled right away, instead of when writing to the closed socket fails.
+ * Also records seek to first byte latency, time to first byte and stalls.
+ */
+public class StreamSessions {
+    private final HashMap<String, List<Session>> sessions = new HashMap<>();
+    private final StreamMetrics metrics;
+
+    //Seek latency stats
+    private long seeks = 0;
+    private long superseded = 0;
+    private long totalLatency = 0;
+    private long maxLatency = 0;
+    private long lastLatency = 0;
+
+    StreamSessions(StreamMetrics metrics) {
+        this.metrics = metrics;
+    }
+
+    /**
+     * Register response, before reading any data so superseded transfers stop first.
+     * @param key Track key
+     * @param cached Cache channel of response, cancelled if superseded. Null if not reading through cache
+     * @param openEnded Request without range end, supersedes older open ended requests
+     * @param seek Request doesn't start at beginning of track, latency is recorded
+     * @param started System.nanoTime() of request start
+     * @return Session to use as response body (after setting channel), unregistered on close
+     */
+    Session open(String key, CachedChannel cached, boolean openEnded, boolean seek, long started) {
+        Session session = new Session(key, cached, openEnded, seek, started);
+        synchronized (this) {
+            List<Session> list = sessions.get(key);
+            if (list == null) {
+                list = new ArrayList<>();
+                sessions.put(key, list);
+            }
+            if (openEnded) {
+                for (Session old : list) {
+                    if (old.openEnded && !old.cancelled) {
+                        old.cancel();
+                        superseded++;
+                    }
+                }
+            }
+            list.add(session);
+        }
+        return session;
+    }
+
+    private synchronized void close(Session session) {
+        List<Session> list = sessions.get(session.key);
+        if (list == null)
+            return;
+        list.remove(session);
+        if (list.isEmpty())
+            sessions.remove(session.key);
+    }
+
+    private synchronized void recordLatency(long millis) {
+        seeks++;
+        totalLatency += millis;
+        maxLatency = Math.max(maxLatency, millis);
+        lastLatency = millis;
+    }
+
+    //For passing into UI
+    synchronized HashMap<String, Object> toJSON() {
+        HashMap<String, Object> out = new HashMap<>();
+        out.put("seeks", seeks);
+        out.put("superseded", superseded);
+        out.put("averageSeekLatency", (seeks == 0) ? 0 : totalLatency / seeks);
+        out.put("maxSeekLatency", maxLatency);
+        out.put("lastSeekLatency", lastLatency);
+        return out;
+    }
+
+    class Session implements ReadableByteChannel {
+        final String key;
+        final boolean openEnded;
+        final boolean seek;
+        private final CachedChannel cached;
+        private final long started;
+        private ReadableByteChannel channel;
+        private StreamServer.StreamInfo stats;
+        private boolean firstByte = false;
+        private volatile boolean cancelled = false;
+
+        Session(String key, CachedChannel cached, boolean openEnded, boolean seek, long started) {
+            this.key = key;
+            this.cached = cached;
+            this.channel = cached;
+            this.openEnded = openEnded;
+            this.seek = seek;
+            this.started = started;
+        }
+
+        //Body channel reading from the cache channel, for example decrypting
+        Session setChannel(ReadableByteChannel channel) {
+            this.channel = channel;
+            return this;
+        }
+
+        //Record served bytes & time to first byte
+        Session setStats(StreamServer.StreamInfo stats) {
+            this.stats = stats;
+            return this;
+        }
+
+        private void cancel() {
+            cancelled = true;
+            if (cached != null)
+                cached.cancel();
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            if (cancelled)
+                throw new IOException("Stream of " + key + " superseded by newer request");
+            long readStarted = System.nanoTime();
+            int read = channel.read(dst);
+            if (read > 0 && stats != null)
+                stats.served(read);
+            //Player waited for data
+            if (firstByte) {
+                long waited = System.nanoTime() - readStarted;
+                if (waited > StreamMetrics.STALL_THRESHOLD * 1000000)
+                    metrics.stall.recordNanos(waited);
+            }
+            if (!firstByte && read > 0) {
+                firstByte = true;
+                metrics.firstByte.recordNanos(System.nanoTime() - started);
+                long millis = (System.nanoTime() - started) / 1000000;
+                if (stats != null)
+                    stats.firstByte(millis);
+                if (seek) {
+                    recordLatency(millis);
+                    Log.d("StreamServer", "Seek to first byte: " + millis + "ms, " + key);
+                }
+            }
+            return read;
+        }
+
+        @Override
+        public boolean isOpen() {
+            return channel.isOpen();
+        }
+
+        @Override
+        public void close() throws IOException {
+            StreamSessions.this.close(this);
+            channel.close();
+        }
+    }
+}
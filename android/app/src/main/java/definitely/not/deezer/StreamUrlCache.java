@@ -0,0 +1,73 @@
+package definitely.not.deezer;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Short lived cache of resolved CDN URLs, keyed by the stream request parameters.
+ * Lets range requests of the same track skip get_url, HEAD probes and ID fallback.
+ */
+public class StreamUrlCache {
+    //CDN URLs are signed and expire, stay well under that
+    static final long TTL = 15 * 60 * 1000;
+    static final int MAX_ENTRIES = 64;
+
+    //Result of Deezer.QualityInfo.fallback
+    static class Resolved {
+        final String url;
+        final int quality;
+        final boolean encrypted;
+        final String trackId;
+        final long size;
+        final long expires;
+
+        Resolved(String url, Deezer.QualityInfo qualityInfo) {
+            this.url = url;
+            this.quality = qualityInfo.quality;
+            this.encrypted = qualityInfo.encrypted;
+            this.trackId = qualityInfo.trackId;
+            this.size = qualityInfo.size;
+            this.expires = System.currentTimeMillis() + TTL;
+        }
+
+        //Restore fallback result
+        void apply(Deezer.QualityInfo qualityInfo) {
+            qualityInfo.quality = quality;
+            qualityInfo.encrypted = encrypted;
+            qualityInfo.trackId = trackId;
+            qualityInfo.size = size;
+        }
+    }
+
+    private final LinkedHashMap<String, Resolved> entries = new LinkedHashMap<String, Resolved>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Resolved> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    //Has to be created before fallback, which modifies QualityInfo
+    static String key(Deezer.QualityInfo qualityInfo) {
+        return qualityInfo.trackId + ":" + qualityInfo.quality + ":" + qualityInfo.trackToken + ":" + qualityInfo.md5origin + ":" + qualityInfo.mediaVersion;
+    }
+
+    synchronized Resolved get(String key) {
+        Resolved resolved = entries.get(key);
+        if (resolved != null && resolved.expires < System.currentTimeMillis()) {
+            entries.remove(key);
+            return null;
+        }
+        return resolved;
+    }
+
+    synchronized Resolved put(String key, String url, Deezer.QualityInfo qualityInfo) {
+        Resolved resolved = new Resolved(url, qualityInfo);
+        entries.put(key, resolved);
+        return resolved;
+    }
+
+    //URL expired or file removed from CDN
+    synchronized void invalidate(String key) {
+        entries.remove(key);
+    }
+}
@@ -0,0 +1,71 @@
+package definitely.not.deezer;
+
+import java.util.HashMap;
+
+/**
+ * Rolling estimate of CDN download speed per network (exponentially weighted by time spent downloading),
+ * used to pick a stream quality the connection can sustain.
+ */
+public class ThroughputEstimator {
+    //Older samples lose weight with this time constant (seconds of downloading)
+    static final double TAU = 5.0;
+    //Required speed over bitrate, read ahead & seeks need more than realtime
+    static final double HEADROOM = 1.5;
+    //Samples shorter than this are dominated by buffering, not network
+    static final long MIN_SAMPLE_NANOS = 1000000;
+    //Qualities from best, FLAC -> MP3_320 -> MP3_128
+    static final int[] QUALITIES = {9, 3, 1};
+
+    //Bytes/s per network
+    private final HashMap<String, Double> estimates = new HashMap<>();
+    private String network = "unknown";
+
+    synchronized void setNetwork(String network) {
+        this.network = network;
+    }
+
+    /**
+     * Add measurement of time spent reading from upstream.
+     * @param bytes Bytes read
+     * @param nanos Time of the reads
+     */
+    synchronized void sample(long bytes, long nanos) {
+        if (nanos < MIN_SAMPLE_NANOS)
+            return;
+        double seconds = nanos / 1e9;
+        double speed = bytes / seconds;
+        Double estimate = estimates.get(network);
+        if (estimate == null) {
+            estimates.put(network, speed);
+            return;
+        }
+        double weight = 1 - Math.exp(-seconds / TAU);
+        estimates.put(network, estimate + weight * (speed - estimate));
+    }
+
+    //Bytes/s on current network, -1 if not measured yet
+    synchronized double estimate() {
+        Double estimate = estimates.get(network);
+        return (estimate == null) ? -1 : estimate;
+    }
+
+    /**
+     * Best quality not above requested one the current network can sustain.
+     * @param requested Quality asked for by UI
+     * @return Quality to stream, requested one if there's no estimate yet
+     */
+    int choose(int requested) {
+        double estimate = estimate();
+        if (estimate < 0)
+            return requested;
+        int chosen = requested;
+        for (int quality : QUALITIES) {
+            if (quality > requested)
+                continue;
+            chosen = quality;
+            if (estimate >= StreamServer.bytesPerSecond(quality) * HEADROOM)
+                break;
+        }
+        return chosen;
+    }
+}
@@ -0,0 +1,123 @@
+package definitely.not.deezer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decryption of whole tracks, synthetic encrypted payloads of 10, 40 and 120 MB.
+ * Throughput is reported by the "megabytes" counter (MB/s), allocations by the gc profiler.
+ * Decrypted data is garbage (payload is random), which doesn't matter for speed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class DecryptBenchmark {
+    static final String TRACK_ID = "3135556";
+
+    @Param({"10", "40", "120"})
+    public int megabytes;
+
+    byte[] payload;
+    File encrypted;
+    File decrypted;
+    byte[] key;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long megabytes;
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        payload = new byte[megabytes * 1024 * 1024];
+        new Random(megabytes).nextBytes(payload);
+        encrypted = File.createTempFile("bench", ".ENC");
+        decrypted = File.createTempFile("bench", ".DEC");
+        try (FileOutputStream fos = new FileOutputStream(encrypted)) {
+            fos.write(payload);
+        }
+        key = DeezerDecryptor.getKey(TRACK_ID);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        encrypted.delete();
+        decrypted.delete();
+    }
+
+    @Benchmark
+    public void decryptFile(Counters counters) throws Exception {
+        new DeezerDecryptor(TRACK_ID).decryptFile(encrypted.getPath(), decrypted.getPath());
+        counters.megabytes += megabytes;
+    }
+
+    //Sequential or parallel, whichever decryptFileInPlace picks for the size. Decrypts the same file over and over
+    @Benchmark
+    public void decryptFileInPlace(Counters counters) throws Exception {
+        new DeezerDecryptor(TRACK_ID).decryptFileInPlace(encrypted.getPath());
+        counters.megabytes += megabytes;
+    }
+
+    //How StreamServer decrypted before BlowfishEngine, new cipher and arrays per chunk
+    @Benchmark
+    public void staticDecryptChunk(Counters counters, Blackhole blackhole) {
+        for (int offset = 0; offset + 2048 <= payload.length; offset += 3 * 2048) {
+            blackhole.consume(DeezerDecryptor.decryptChunk(key, Arrays.copyOfRange(payload, offset, offset + 2048)));
+        }
+        counters.megabytes += megabytes;
+    }
+
+    //Decrypts payload in place repeatedly
+    @Benchmark
+    public void engineDecryptChunk(Counters counters) {
+        BlowfishEngine engine = BlowfishEngine.forTrack(TRACK_ID);
+        for (int offset = 0; offset + 2048 <= payload.length; offset += 3 * 2048) {
+            engine.decryptChunk(payload, offset);
+        }
+        counters.megabytes += megabytes;
+    }
+
+    //Same wrapping as StreamServer.deezerStream, unaligned range start, read by NanoHTTPD in 16K blocks
+    @Benchmark
+    public void streamServerChannel(Counters counters, Blackhole blackhole) throws IOException {
+        int startBytes = 1000;
+        try (InputStream inputStream = Channels.newInputStream(new DecryptingChannel(
+                Channels.newChannel(new ByteArrayInputStream(payload)),
+                BlowfishEngine.forTrack(TRACK_ID),
+                0
+        ).position(startBytes))) {
+            byte[] buffer = new byte[16 * 1024];
+            int read;
+            while ((read = inputStream.read(buffer)) != -1) {
+                blackhole.consume(read);
+            }
+        }
+        counters.megabytes += megabytes;
+    }
+}
@@ -0,0 +1,122 @@
+package definitely.not.deezer;
+
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.nio.channels.Channels;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * StreamServer engines serving a local 10 MB track over loopback, like the player does.
+ * "offline" serves a file region (transferTo on NIO engine), "stream" a channel (decrypted stream path),
+ * the concurrent variants run 8 clients at once. Throughput is in MB/s as "megabytes".
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@State(Scope.Benchmark)
+public class EngineBenchmark {
+    static final int PORT = 36959;
+    static final int SIZE = 10 * 1024 * 1024;
+
+    //Same as StreamServer.ENGINE_*, StreamServer itself needs Android
+    @Param({"nanohttpd", "nio"})
+    public String engine;
+
+    byte[] payload;
+    File file;
+    StreamEngine server;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class Counters {
+        public long megabytes;
+        byte[] buffer = new byte[64 * 1024];
+
+        @Setup(Level.Iteration)
+        public void reset() {
+            megabytes = 0;
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        payload = new byte[SIZE];
+        new Random(SIZE).nextBytes(payload);
+        file = File.createTempFile("bench", ".flac");
+        try (FileOutputStream fos = new FileOutputStream(file)) {
+            fos.write(payload);
+        }
+
+        StreamEngine.Handler handler = request -> {
+            if (request.uri.equals("/stream"))
+                return StreamResponse.channel(200, "audio/flac", Channels.newChannel(new ByteArrayInputStream(payload)), SIZE);
+            return StreamResponse.file(200, "audio/flac", new RandomAccessFile(file, "r").getChannel(), 0, SIZE);
+        };
+        if (engine.equals("nio"))
+            server = new NioStreamEngine("127.0.0.1", PORT, handler);
+        else
+            server = new NanoStreamEngine("127.0.0.1", PORT, handler);
+        server.start();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        server.stop();
+        file.delete();
+    }
+
+    //Download whole response, keep-alive connections are reused by HttpURLConnection
+    private void fetch(String path, Counters counters) throws IOException {
+        HttpURLConnection connection = (HttpURLConnection) new URL("http://127.0.0.1:" + PORT + path).openConnection();
+        try (InputStream stream = connection.getInputStream()) {
+            long total = 0;
+            int read;
+            while ((read = stream.read(counters.buffer)) != -1)
+                total += read;
+            if (total != SIZE)
+                throw new IOException("Short response: " + total);
+        }
+        counters.megabytes += SIZE / (1024 * 1024);
+    }
+
+    @Benchmark
+    public void offline(Counters counters) throws IOException {
+        fetch("/offline", counters);
+    }
+
+    @Benchmark
+    public void stream(Counters counters) throws IOException {
+        fetch("/stream", counters);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void offlineConcurrent(Counters counters) throws IOException {
+        fetch("/offline", counters);
+    }
+
+    @Benchmark
+    @Threads(8)
+    public void streamConcurrent(Counters counters) throws IOException {
+        fetch("/stream", counters);
+    }
+}
@@ -0,0 +1,34 @@
+package definitely.not.deezer;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per track setup cost: key derivation, key schedule expansion and cached engine lookup.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class KeyBenchmark {
+
+    @Benchmark
+    public byte[] getKey() {
+        return DeezerDecryptor.getKey(DecryptBenchmark.TRACK_ID);
+    }
+
+    @Benchmark
+    public BlowfishEngine newEngine() {
+        return new BlowfishEngine(DeezerDecryptor.getKey(DecryptBenchmark.TRACK_ID));
+    }
+
+    @Benchmark
+    public BlowfishEngine cachedEngine() {
+        return BlowfishEngine.forTrack(DecryptBenchmark.TRACK_ID);
+    }
+}